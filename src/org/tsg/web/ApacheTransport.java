@@ -0,0 +1,106 @@
+package org.tsg.web;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.http.Header;
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpResponse;
+import org.apache.http.client.methods.HttpUriRequest;
+import org.apache.http.impl.client.DefaultHttpClient;
+
+/**
+ * Transport over the org.apache.http client. The request and client are built
+ * with the WebClient hooks getRequest, getHttpClient, getHttpParams and
+ * setClientCookieStore, so subclasses overriding them keep working; the body
+ * of Transport.Request is not used, getRequest supplies the entity.
+ */
+public class ApacheTransport implements Transport {
+
+	public Transport.Response execute(WebClient client, Transport.Request request) throws Exception {
+		HttpUriRequest httpRequest = client.getRequest(request.getURI());
+		for (String[] header : request.getHeaders()) {
+			httpRequest.addHeader(header[0], header[1]);
+		}
+
+		DefaultHttpClient httpClient = client.getHttpClient();
+		httpClient.setParams(client.getHttpParams());
+		client.setClientCookieStore(httpClient);
+
+		try {
+			HttpResponse response = httpClient.execute(httpRequest);
+			client.handleClientCookieStore(httpClient.getCookieStore());
+			return new Response(httpRequest, response);
+		} catch (Exception e) {
+			httpRequest.abort();
+			throw e;
+		}
+	}
+
+	/**
+	 * Response wrapping HttpResponse, whose entity is handed to
+	 * WebClient.handleResponse(HttpEntity) as before.
+	 */
+	static class Response implements Transport.Response {
+		private final HttpUriRequest mRequest;
+		private final HttpResponse mResponse;
+
+		Response(HttpUriRequest request, HttpResponse response) {
+			mRequest = request;
+			mResponse = response;
+		}
+
+		HttpEntity getEntity() {
+			return mResponse.getEntity();
+		}
+
+		public int getCode() {
+			return mResponse.getStatusLine().getStatusCode();
+		}
+
+		public String getMessage() {
+			return mResponse.getStatusLine().getReasonPhrase();
+		}
+
+		public String getHeader(String name) {
+			Header header = mResponse.getFirstHeader(name);
+			return header == null ? null : header.getValue();
+		}
+
+		public List<String> getHeaders(String name) {
+			List<String> values = new ArrayList<String>();
+			for (Header header : mResponse.getHeaders(name)) {
+				values.add(header.getValue());
+			}
+			return values;
+		}
+
+		public long getContentLength() {
+			HttpEntity entity = mResponse.getEntity();
+			return entity == null ? -1 : entity.getContentLength();
+		}
+
+		public InputStream getBody() throws IOException {
+			HttpEntity entity = mResponse.getEntity();
+			return entity == null ? null : entity.getContent();
+		}
+
+		public void close() {
+			HttpEntity entity = mResponse.getEntity();
+			if (entity == null) {
+				return;
+			}
+			try {
+				entity.consumeContent();
+			} catch (IOException e) {
+				mRequest.abort();
+			}
+		}
+
+		public void abort() {
+			mRequest.abort();
+		}
+	}
+}
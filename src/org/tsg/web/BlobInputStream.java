@@ -0,0 +1,96 @@
+package org.tsg.web;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Reads a response stored as a blob in the cache db in fixed size chunks using
+ * substr, so the full blob is never copied through a CursorWindow or held in
+ * memory at once. Bodies are addressed by content hash and never change, if the
+ * body is removed while reading the next chunk fails with an IOException.
+ */
+class BlobInputStream extends InputStream {
+
+	static final int CHUNK_SIZE = 64 * 1024;
+
+	private final WebContentProvider.Database mDatabase;
+	private final String mHash;
+	private final long mLength;
+
+	private long mOffset;
+	private byte[] mChunk;
+	private int mChunkPos;
+
+	public BlobInputStream(WebContentProvider.Database database, String hash, long length) {
+		mDatabase = database;
+		mHash = hash;
+		mLength = length;
+	}
+
+	@Override
+	public int read() throws IOException {
+		if (!fill()) {
+			return -1;
+		}
+		return mChunk[mChunkPos++] & 0xff;
+	}
+
+	@Override
+	public int read(byte[] b, int off, int len) throws IOException {
+		if (len == 0) {
+			return 0;
+		}
+		if (!fill()) {
+			return -1;
+		}
+
+		int n = Math.min(len, mChunk.length - mChunkPos);
+		System.arraycopy(mChunk, mChunkPos, b, off, n);
+		mChunkPos += n;
+		return n;
+	}
+
+	@Override
+	public long skip(long n) throws IOException {
+		if (n <= 0) {
+			return 0;
+		}
+
+		long buffered = mChunk == null ? 0 : mChunk.length - mChunkPos;
+		if (n <= buffered) {
+			mChunkPos += n;
+			return n;
+		}
+
+		long skipped = Math.min(n, buffered + mLength - mOffset);
+		mOffset += skipped - buffered;
+		mChunk = null;
+		return skipped;
+	}
+
+	@Override
+	public int available() {
+		long available = (mChunk == null ? 0 : mChunk.length - mChunkPos) + mLength - mOffset;
+		return (int) Math.min(available, Integer.MAX_VALUE);
+	}
+
+	private boolean fill() throws IOException {
+		if (mChunk != null && mChunkPos < mChunk.length) {
+			return true;
+		}
+		if (mOffset >= mLength) {
+			return false;
+		}
+
+		int len = (int) Math.min(CHUNK_SIZE, mLength - mOffset);
+		mChunk = mDatabase.getBlobChunk(mHash, mOffset, len);
+		if (mChunk == null || mChunk.length == 0) {
+			mChunk = null;
+			throw new IOException("response body " + mHash + " removed while reading");
+		}
+
+		mChunkPos = 0;
+		mOffset += mChunk.length;
+		return true;
+	}
+}
@@ -0,0 +1,120 @@
+package org.tsg.web;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.zip.Inflater;
+
+/**
+ * Buffers and Inflater of a thread, reused for every response the thread reads
+ * instead of being allocated per response. Executor threads of WebService read
+ * one response at a time, so at most one response may use the pool of a thread
+ * at once.
+ */
+final class BufferPool {
+
+	static final int BUFFER_SIZE = 8192;
+
+	// output grown past this is dropped once done with, so one large response
+	// doesn't hold on to memory for the life of the thread
+	private static final int MAX_RETAINED_SIZE = 256 * 1024;
+
+	private static final ThreadLocal<BufferPool> POOLS = new ThreadLocal<BufferPool>() {
+		@Override
+		protected BufferPool initialValue() {
+			return new BufferPool();
+		}
+	};
+
+	// copy buffer of stream reads
+	final byte[] mBuffer = new byte[BUFFER_SIZE];
+	// compressed input of mInflater
+	final byte[] mInput = new byte[BUFFER_SIZE];
+	private Inflater mInflater;
+	private Output mOutput;
+
+	private static class Output extends ByteArrayOutputStream {
+		Output() {
+			super(BUFFER_SIZE);
+		}
+
+		int capacity() {
+			return buf.length;
+		}
+	}
+
+	private BufferPool() {
+	}
+
+	static BufferPool get() {
+		return POOLS.get();
+	}
+
+	/**
+	 * Inflater for raw deflate data, as in gzip, reset before use.
+	 *
+	 * @return
+	 */
+	Inflater getInflater() {
+		if (mInflater == null) {
+			mInflater = new Inflater(true);
+		}
+		mInflater.reset();
+		return mInflater;
+	}
+
+	/**
+	 * Empty output stream to accumulate bytes of unknown length in. Valid until
+	 * the next call on this thread.
+	 *
+	 * @return
+	 */
+	ByteArrayOutputStream getOutput() {
+		if (mOutput == null || mOutput.capacity() > MAX_RETAINED_SIZE) {
+			mOutput = new Output();
+		}
+		mOutput.reset();
+		return mOutput;
+	}
+
+	/**
+	 * Read in to the end, copying the bytes once. Streams of known length are
+	 * read straight into the result, others into the pooled output first.
+	 *
+	 * @param in
+	 * @param length
+	 *          -1 if unknown
+	 * @return
+	 * @throws IOException
+	 */
+	byte[] readFully(InputStream in, long length) throws IOException {
+		if (length >= 0 && length <= Integer.MAX_VALUE) {
+			byte[] bytes = new byte[(int) length];
+			int offset = 0;
+			int len;
+			while (offset < bytes.length && (len = in.read(bytes, offset, bytes.length - offset)) != -1) {
+				offset += len;
+			}
+			int next = offset < bytes.length ? -1 : in.read();
+			if (offset == bytes.length && next == -1) {
+				return bytes;
+			}
+			// length was wrong, carry on with what was read
+			ByteArrayOutputStream out = getOutput();
+			out.write(bytes, 0, offset);
+			if (next != -1) {
+				out.write(next);
+			}
+			return readFully(in, out);
+		}
+		return readFully(in, getOutput());
+	}
+
+	private byte[] readFully(InputStream in, ByteArrayOutputStream out) throws IOException {
+		int len;
+		while ((len = in.read(mBuffer)) != -1) {
+			out.write(mBuffer, 0, len);
+		}
+		return out.toByteArray();
+	}
+}
@@ -0,0 +1,99 @@
+package org.tsg.web;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+import android.os.Bundle;
+
+/**
+ * Counters of cache activity since the process started, and names of the
+ * values reported by WebService.getCacheStats and the stats query of
+ * WebContentProvider. Counters are only ever incremented, so rates can be
+ * derived by sampling.
+ */
+public final class CacheStats {
+
+	/* counters */
+
+	// requests answered with a fresh cached response
+	public static final String HITS = "hits";
+	// requests answered with a stale response while it is revalidated
+	public static final String STALE_HITS = "staleHits";
+	// requests answered with a cached failure
+	public static final String NEGATIVE_HITS = "negativeHits";
+	// requests that went to the network
+	public static final String MISSES = "misses";
+	// network requests answered with 304 Not Modified
+	public static final String NOT_MODIFIED = "notModified";
+	// network requests that failed with an error response or exception
+	public static final String ERRORS = "errors";
+	// responses stored as a blob in the cache db, and their bytes
+	public static final String STORED_INLINE = "storedInline";
+	public static final String STORED_INLINE_BYTES = "storedInlineBytes";
+	// responses stored as a side file, and their bytes
+	public static final String STORED_FILE = "storedFile";
+	public static final String STORED_FILE_BYTES = "storedFileBytes";
+	// responses identical to a body already stored
+	public static final String DEDUPLICATED = "deduplicated";
+	// records evicted to stay within MAX_CACHE_SIZE, and bytes freed
+	public static final String EVICTIONS = "evictions";
+	public static final String EVICTED_BYTES = "evictedBytes";
+	public static final String MEMORY_HITS = "memoryHits";
+	public static final String MEMORY_MISSES = "memoryMisses";
+
+	/* gauges */
+
+	// records in the cache db
+	public static final String ENTRIES = "entries";
+	// bytes of stored bodies, inline and as side files
+	public static final String SIZE = "size";
+	public static final String INLINE_SIZE = "inlineSize";
+	public static final String FILE_SIZE = "fileSize";
+	public static final String MAX_SIZE = "maxSize";
+	public static final String MEMORY_SIZE = "memorySize";
+	public static final String MEMORY_MAX_SIZE = "memoryMaxSize";
+
+	static final AtomicLong sHits = new AtomicLong();
+	static final AtomicLong sStaleHits = new AtomicLong();
+	static final AtomicLong sNegativeHits = new AtomicLong();
+	static final AtomicLong sMisses = new AtomicLong();
+	static final AtomicLong sNotModified = new AtomicLong();
+	static final AtomicLong sErrors = new AtomicLong();
+	static final AtomicLong sStoredInline = new AtomicLong();
+	static final AtomicLong sStoredInlineBytes = new AtomicLong();
+	static final AtomicLong sStoredFile = new AtomicLong();
+	static final AtomicLong sStoredFileBytes = new AtomicLong();
+	static final AtomicLong sDeduplicated = new AtomicLong();
+	static final AtomicLong sEvictions = new AtomicLong();
+	static final AtomicLong sEvictedBytes = new AtomicLong();
+
+	private CacheStats() {
+	}
+
+	/**
+	 * Counters and memory cache values. Database gauges are added by
+	 * WebContentProvider.Database.getStats.
+	 *
+	 * @return
+	 */
+	static Bundle getCounters() {
+		Bundle stats = new Bundle();
+		stats.putLong(HITS, sHits.get());
+		stats.putLong(STALE_HITS, sStaleHits.get());
+		stats.putLong(NEGATIVE_HITS, sNegativeHits.get());
+		stats.putLong(MISSES, sMisses.get());
+		stats.putLong(NOT_MODIFIED, sNotModified.get());
+		stats.putLong(ERRORS, sErrors.get());
+		stats.putLong(STORED_INLINE, sStoredInline.get());
+		stats.putLong(STORED_INLINE_BYTES, sStoredInlineBytes.get());
+		stats.putLong(STORED_FILE, sStoredFile.get());
+		stats.putLong(STORED_FILE_BYTES, sStoredFileBytes.get());
+		stats.putLong(DEDUPLICATED, sDeduplicated.get());
+		stats.putLong(EVICTIONS, sEvictions.get());
+		stats.putLong(EVICTED_BYTES, sEvictedBytes.get());
+		stats.putLong(MEMORY_HITS, WebContentProvider.MEMORY_CACHE.hitCount());
+		stats.putLong(MEMORY_MISSES, WebContentProvider.MEMORY_CACHE.missCount());
+		stats.putLong(MEMORY_SIZE, WebContentProvider.MEMORY_CACHE.size());
+		stats.putLong(MEMORY_MAX_SIZE, WebContentProvider.MEMORY_CACHE.maxSize());
+		return stats;
+	}
+}
@@ -0,0 +1,246 @@
+package org.tsg.web;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import android.database.sqlite.SQLiteDatabase;
+import android.util.Log;
+
+/**
+ * Single writer thread for the cache db. Batched tasks that arrive together,
+ * up to BATCH_SIZE or within BATCH_WINDOW of the first, are written in one
+ * transaction so a burst of finished requests pays for one commit instead of
+ * one per response, each under its own savepoint so a failing task is rolled
+ * back alone. Other tasks run alone in their own transaction, rolled back if
+ * the task fails, or none if they aren't transactional.
+ * 
+ * Tasks submitted with submit can be awaited, and are visible to readers of
+ * the db by the time await returns.
+ */
+class CacheWriter implements Runnable {
+
+	static final int BATCH_SIZE = 32;
+	static final long BATCH_WINDOW = 5;
+
+	/**
+	 * Unit of work run on the writer thread.
+	 */
+	static abstract class Task {
+		private final CountDownLatch mDone = new CountDownLatch(1);
+		private Throwable mError;
+
+		/**
+		 * Whether this task may share a transaction with other batched tasks.
+		 * 
+		 * @return
+		 */
+		boolean isBatched() {
+			return false;
+		}
+
+		/**
+		 * Whether this task runs inside a transaction at all. Statements such as
+		 * VACUUM can't.
+		 * 
+		 * @return
+		 */
+		boolean isTransactional() {
+			return true;
+		}
+
+		/**
+		 * Performs the write, called on writer thread inside the batch transaction.
+		 * 
+		 * @param database
+		 */
+		abstract void write(SQLiteDatabase database);
+
+		/**
+		 * Called on writer thread once write has been committed.
+		 */
+		void committed() {
+		}
+
+		/**
+		 * Block until task has been committed, rethrowing any failure.
+		 */
+		void await() {
+			try {
+				mDone.await();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new IllegalStateException("interrupted waiting for cache write", e);
+			}
+
+			if (mError != null) {
+				throw new IllegalStateException("cache write failed", mError);
+			}
+		}
+
+		private void done(Throwable error) {
+			mError = error;
+			mDone.countDown();
+		}
+	}
+
+	/**
+	 * Runs tasks as one unbatched task, so they commit or roll back together.
+	 */
+	static class Group extends Task {
+		private final List<? extends Task> mTasks;
+
+		Group(List<? extends Task> tasks) {
+			mTasks = tasks;
+		}
+
+		@Override
+		void write(SQLiteDatabase database) {
+			for (Task task : mTasks) {
+				task.write(database);
+			}
+		}
+
+		@Override
+		void committed() {
+			for (Task task : mTasks) {
+				task.committed();
+			}
+		}
+	}
+
+	private final SQLiteDatabase mDatabase;
+	private final BlockingQueue<Task> mQueue = new LinkedBlockingQueue<Task>();
+
+	public CacheWriter(SQLiteDatabase database) {
+		mDatabase = database;
+
+		Thread thread = new Thread(this, "CacheWriter");
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	/**
+	 * Queue task without waiting for it.
+	 * 
+	 * @param task
+	 */
+	public void execute(Task task) {
+		mQueue.add(task);
+	}
+
+	/**
+	 * Queue task and wait for it to be committed.
+	 * 
+	 * @param task
+	 */
+	public void submit(Task task) {
+		mQueue.add(task);
+		task.await();
+	}
+
+	@Override
+	public void run() {
+		List<Task> batch = new ArrayList<Task>(BATCH_SIZE);
+		Task next = null;
+
+		while (true) {
+			try {
+				Task task = next != null ? next : mQueue.take();
+				next = null;
+				batch.add(task);
+
+				if (task.isBatched()) {
+					long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(BATCH_WINDOW);
+					while (batch.size() < BATCH_SIZE) {
+						Task polled = mQueue.poll(deadline - System.nanoTime(), TimeUnit.NANOSECONDS);
+						if (polled == null) {
+							break;
+						}
+						if (!polled.isBatched()) {
+							next = polled;
+							break;
+						}
+						batch.add(polled);
+					}
+				}
+
+				commit(batch);
+			} catch (InterruptedException e) {
+				WebService.log(Log.WARN, "CacheWriter interrupted");
+			} catch (Throwable t) {
+				t.printStackTrace();
+			} finally {
+				batch.clear();
+			}
+		}
+	}
+
+	private void commit(List<Task> batch) {
+		Throwable[] errors = new Throwable[batch.size()];
+		Throwable failure = null;
+		boolean transactional = batch.get(0).isTransactional();
+
+		if (transactional) {
+			mDatabase.beginTransaction();
+		}
+
+		// tasks sharing a transaction each write under a savepoint, so a failed
+		// task's partial writes are undone without losing the others
+		boolean savepoints = transactional && batch.size() > 1;
+
+		try {
+			for (int i = 0; i < batch.size(); i++) {
+				if (savepoints) {
+					mDatabase.execSQL("savepoint task");
+				}
+				try {
+					batch.get(i).write(mDatabase);
+				} catch (Throwable t) {
+					errors[i] = t;
+					if (savepoints) {
+						mDatabase.execSQL("rollback to task");
+					}
+				}
+				if (savepoints) {
+					mDatabase.execSQL("release task");
+				}
+			}
+
+			// a task run alone is rolled back if it fails
+			if (transactional && (batch.size() > 1 || errors[0] == null)) {
+				mDatabase.setTransactionSuccessful();
+			}
+		} catch (Throwable t) {
+			failure = t;
+		} finally {
+			if (transactional) {
+				try {
+					mDatabase.endTransaction();
+				} catch (Throwable t) {
+					failure = t;
+				}
+			}
+		}
+
+		for (int i = 0; i < batch.size(); i++) {
+			Task task = batch.get(i);
+			Throwable error = failure != null ? failure : errors[i];
+			if (error == null) {
+				try {
+					task.committed();
+				} catch (Throwable t) {
+					error = t;
+				}
+			}
+			task.done(error);
+		}
+
+		if (batch.size() > 1) {
+			WebService.log(Log.DEBUG, "CacheWriter committed batch of", batch.size());
+		}
+	}
+}
@@ -0,0 +1,134 @@
+package org.tsg.web;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * Storage codecs for response blobs in the cache db. The codec of each record
+ * is stored alongside it so compression can be turned on or off without
+ * invalidating existing records.
+ */
+final class Codec {
+
+	static final int NONE = 0;
+	static final int DEFLATE = 1;
+
+	private Codec() {
+	}
+
+	/**
+	 * Whether responses of mimeType are worth compressing. Images and other
+	 * binary formats are typically compressed already.
+	 * 
+	 * @param mimeType
+	 * @return
+	 */
+	static boolean isCompressible(String mimeType) {
+		if (mimeType == null) {
+			return false;
+		}
+
+		String type = mimeType.toLowerCase();
+		return type.startsWith("text/") || type.contains("json") || type.contains("xml") || type.contains("javascript")
+				|| type.contains("x-www-form-urlencoded");
+	}
+
+	/**
+	 * Deflate bytes, returns null if the result would not be smaller.
+	 * 
+	 * @param bytes
+	 * @return
+	 */
+	static byte[] deflate(byte[] bytes) {
+		Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION);
+		try {
+			deflater.setInput(bytes);
+			deflater.finish();
+
+			ByteArrayOutputStream out = new ByteArrayOutputStream(bytes.length / 4);
+			byte[] buffer = new byte[8192];
+			while (!deflater.finished()) {
+				out.write(buffer, 0, deflater.deflate(buffer));
+				if (out.size() >= bytes.length) {
+					return null;
+				}
+			}
+			return out.toByteArray();
+		} finally {
+			deflater.end();
+		}
+	}
+
+	/**
+	 * Decode stored bytes of codec.
+	 * 
+	 * @param bytes
+	 * @param codec
+	 * @return
+	 * @throws IOException
+	 */
+	static byte[] decode(byte[] bytes, int codec) throws IOException {
+		if (bytes == null || codec == NONE) {
+			return bytes;
+		}
+
+		Inflater inflater = new Inflater();
+		try {
+			inflater.setInput(bytes);
+
+			ByteArrayOutputStream out = new ByteArrayOutputStream(bytes.length * 4);
+			byte[] buffer = new byte[8192];
+			while (!inflater.finished()) {
+				int len = inflater.inflate(buffer);
+				if (len == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+					throw new IOException("truncated compressed response");
+				}
+				out.write(buffer, 0, len);
+			}
+			return out.toByteArray();
+		} catch (DataFormatException e) {
+			throw new IOException(e.getMessage());
+		} finally {
+			inflater.end();
+		}
+	}
+
+	/**
+	 * Decode stream of stored bytes of codec as they are read. The stream must be
+	 * closed to release its native inflater.
+	 * 
+	 * @param in
+	 * @param codec
+	 * @return
+	 */
+	static InputStream decode(InputStream in, int codec) {
+		if (codec == NONE) {
+			return in;
+		}
+		return new InflatingStream(in);
+	}
+
+	/**
+	 * InflaterInputStream doesn't end an Inflater passed to it on close, which is
+	 * needed for a buffer larger than the default.
+	 */
+	private static final class InflatingStream extends InflaterInputStream {
+		InflatingStream(InputStream in) {
+			super(in, new Inflater(), 8192);
+		}
+
+		@Override
+		public void close() throws IOException {
+			try {
+				super.close();
+			} finally {
+				inf.end();
+			}
+		}
+	}
+}
@@ -0,0 +1,153 @@
+package org.tsg.web;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+/**
+ * Decodes a gzip stream with the Inflater and input buffer of a BufferPool
+ * rather than allocating new ones per stream as GZIPInputStream does. Only the
+ * first gzip member is read. The inflater is not ended on close, so it can be
+ * reused.
+ */
+final class GzipInputStream extends InputStream {
+
+	private static final int FHCRC = 2;
+	private static final int FEXTRA = 4;
+	private static final int FNAME = 8;
+	private static final int FCOMMENT = 16;
+
+	private final InputStream mIn;
+	private final Inflater mInflater;
+	private final byte[] mInput;
+	private final CRC32 mCrc = new CRC32();
+	private final byte[] mSingle = new byte[1];
+	// bytes of mInput last given to mInflater
+	private int mInputLength;
+	private boolean mEof;
+
+	GzipInputStream(InputStream in, BufferPool pool) throws IOException {
+		mIn = in;
+		mInflater = pool.getInflater();
+		mInput = pool.mInput;
+		readHeader();
+	}
+
+	private void readHeader() throws IOException {
+		if (readUByte() != 0x1f || readUByte() != 0x8b) {
+			throw new IOException("not in gzip format");
+		}
+		if (readUByte() != 8) {
+			throw new IOException("unsupported compression method");
+		}
+		int flags = readUByte();
+		// mtime, extra flags and os
+		skipBytes(6);
+
+		if ((flags & FEXTRA) != 0) {
+			skipBytes(readUByte() | readUByte() << 8);
+		}
+		if ((flags & FNAME) != 0) {
+			while (readUByte() != 0) {
+			}
+		}
+		if ((flags & FCOMMENT) != 0) {
+			while (readUByte() != 0) {
+			}
+		}
+		if ((flags & FHCRC) != 0) {
+			skipBytes(2);
+		}
+	}
+
+	private int readUByte() throws IOException {
+		int b = mIn.read();
+		if (b == -1) {
+			throw new EOFException("truncated gzip response");
+		}
+		return b;
+	}
+
+	private void skipBytes(int count) throws IOException {
+		while (count-- > 0) {
+			readUByte();
+		}
+	}
+
+	@Override
+	public int read() throws IOException {
+		return read(mSingle, 0, 1) == -1 ? -1 : mSingle[0] & 0xff;
+	}
+
+	@Override
+	public int read(byte[] b, int off, int len) throws IOException {
+		if (mEof) {
+			return -1;
+		}
+		if (len == 0) {
+			return 0;
+		}
+
+		try {
+			int count;
+			while ((count = mInflater.inflate(b, off, len)) == 0) {
+				if (mInflater.finished()) {
+					readTrailer();
+					mEof = true;
+					return -1;
+				}
+				if (mInflater.needsDictionary()) {
+					throw new IOException("invalid gzip response");
+				}
+				if (mInflater.needsInput()) {
+					mInputLength = mIn.read(mInput, 0, mInput.length);
+					if (mInputLength == -1) {
+						throw new EOFException("truncated gzip response");
+					}
+					mInflater.setInput(mInput, 0, mInputLength);
+				}
+			}
+			mCrc.update(b, off, count);
+			return count;
+		} catch (DataFormatException e) {
+			throw new IOException(e.getMessage());
+		}
+	}
+
+	/**
+	 * Check CRC-32 and size of the trailer against the inflated data. The start
+	 * of the trailer may already have been read into mInput.
+	 */
+	private void readTrailer() throws IOException {
+		byte[] trailer = new byte[8];
+		int remaining = Math.min(mInflater.getRemaining(), trailer.length);
+		System.arraycopy(mInput, mInputLength - mInflater.getRemaining(), trailer, 0, remaining);
+		for (int i = remaining; i < trailer.length; i++) {
+			trailer[i] = (byte) readUByte();
+		}
+
+		long crc = readUInt(trailer, 0);
+		long size = readUInt(trailer, 4);
+		if (crc != mCrc.getValue() || size != (mInflater.getTotalOut() & 0xffffffffL)) {
+			throw new IOException("corrupt gzip response");
+		}
+	}
+
+	private static long readUInt(byte[] b, int off) {
+		return (b[off] & 0xffL) | (b[off + 1] & 0xffL) << 8 | (b[off + 2] & 0xffL) << 16 | (b[off + 3] & 0xffL) << 24;
+	}
+
+	@Override
+	public int available() throws IOException {
+		return mEof ? 0 : 1;
+	}
+
+	@Override
+	public void close() throws IOException {
+		mEof = true;
+		mIn.close();
+	}
+}
@@ -0,0 +1,129 @@
+package org.tsg.web;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Thread-safe, least recently used cache of response bytes held in memory in
+ * front of the cache database. Entries are bounded by a total byte budget
+ * rather than a count, and any single response larger than an eighth of the
+ * budget is not held at all so one large download can't flush the cache.
+ * 
+ * Arrays handed to put are retained as is and arrays returned by get are
+ * shared, callers must copy before modifying.
+ */
+class MemoryCache {
+
+	private final LinkedHashMap<String, byte[]> mEntries = new LinkedHashMap<String, byte[]>(16, 0.75f, true);
+	private int mMaxSize;
+	private int mSize;
+
+	private long mHitCount;
+	private long mMissCount;
+	// incremented by every change, see fill
+	private long mGeneration;
+
+	public MemoryCache(int maxSize) {
+		mMaxSize = maxSize;
+	}
+
+	public synchronized byte[] get(String key) {
+		byte[] bytes = mEntries.get(key);
+		if (bytes == null) {
+			mMissCount++;
+		} else {
+			mHitCount++;
+		}
+		return bytes;
+	}
+
+	/**
+	 * Cache bytes for key, replacing any previous entry. If bytes are null or too
+	 * large to be held, any previous entry is still removed so stale bytes are
+	 * never returned.
+	 * 
+	 * @param key
+	 * @param bytes
+	 */
+	public synchronized void put(String key, byte[] bytes) {
+		remove(key);
+		mGeneration++;
+
+		if (bytes == null || bytes.length > mMaxSize / 8) {
+			return;
+		}
+
+		mEntries.put(key, bytes);
+		mSize += bytes.length;
+		trimToSize(mMaxSize);
+	}
+
+	public synchronized void remove(String key) {
+		mGeneration++;
+		byte[] previous = mEntries.remove(key);
+		if (previous != null) {
+			mSize -= previous.length;
+		}
+	}
+
+	public synchronized void clear() {
+		mGeneration++;
+		mEntries.clear();
+		mSize = 0;
+	}
+
+	/**
+	 * Generation to pass to fill, taken before reading the bytes to fill with.
+	 * 
+	 * @return
+	 */
+	public synchronized long generation() {
+		return mGeneration;
+	}
+
+	/**
+	 * Cache bytes read from the database for key, unless the cache has changed
+	 * since generation was taken. A put or remove in the meantime, such as of a
+	 * refreshed response being committed, may be newer than the bytes read, so
+	 * they are dropped rather than left to shadow it.
+	 * 
+	 * @param key
+	 * @param bytes
+	 * @param generation
+	 */
+	public synchronized void fill(String key, byte[] bytes, long generation) {
+		if (generation == mGeneration) {
+			put(key, bytes);
+		}
+	}
+
+	public synchronized void setMaxSize(int maxSize) {
+		mMaxSize = maxSize;
+		trimToSize(maxSize);
+	}
+
+	public synchronized int size() {
+		return mSize;
+	}
+
+	public synchronized int maxSize() {
+		return mMaxSize;
+	}
+
+	public synchronized long hitCount() {
+		return mHitCount;
+	}
+
+	public synchronized long missCount() {
+		return mMissCount;
+	}
+
+	private void trimToSize(int maxSize) {
+		Iterator<Map.Entry<String, byte[]>> iter = mEntries.entrySet().iterator();
+		while (mSize > maxSize && iter.hasNext()) {
+			mSize -= iter.next().getValue().length;
+			iter.remove();
+		}
+	}
+}
@@ -0,0 +1,98 @@
+package org.tsg.web;
+
+import java.io.Serializable;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+
+import android.os.Bundle;
+
+/**
+ * Thread-safe record of failed requests held in memory for a short time, so
+ * repeated requests for a failing endpoint are answered with the same error
+ * instead of going back to the network. A failure is either the response code
+ * and message of an error response, or the exception thrown making the call.
+ */
+class NegativeCache {
+
+	// expired entries are swept once this many are held
+	private static final int SWEEP_SIZE = 64;
+
+	private final LinkedHashMap<String, Failure> mEntries = new LinkedHashMap<String, Failure>();
+
+	private static class Failure {
+		final long mExpires;
+		final Integer mResponseCode;
+		final String mResponseMessage;
+		final Serializable mException;
+
+		Failure(long expires, Integer responseCode, String responseMessage, Serializable exception) {
+			mExpires = expires;
+			mResponseCode = responseCode;
+			mResponseMessage = responseMessage;
+			mException = exception;
+		}
+	}
+
+	/**
+	 * Record failure of key for ttl millis, replacing any previous entry.
+	 *
+	 * @param key
+	 * @param ttl
+	 * @param responseCode
+	 *          null if the call threw
+	 * @param responseMessage
+	 * @param exception
+	 *          null if the call completed with an error response
+	 */
+	public synchronized void put(String key, long ttl, Integer responseCode, String responseMessage, Serializable exception) {
+		long now = System.currentTimeMillis();
+
+		if (mEntries.size() >= SWEEP_SIZE) {
+			Iterator<Failure> iter = mEntries.values().iterator();
+			while (iter.hasNext()) {
+				if (iter.next().mExpires <= now) {
+					iter.remove();
+				}
+			}
+		}
+
+		mEntries.put(key, new Failure(now + ttl, responseCode, responseMessage, exception));
+	}
+
+	/**
+	 * Copy unexpired failure of key into bundle as WebReceiver.RESPONSE_CODE,
+	 * RESPONSE_MESSAGE and RESPONSE_EXCEPTION.
+	 *
+	 * @param key
+	 * @param bundle
+	 * @return false if no unexpired failure is recorded for key
+	 */
+	public synchronized boolean get(String key, Bundle bundle) {
+		Failure failure = mEntries.get(key);
+		if (failure == null) {
+			return false;
+		}
+
+		if (failure.mExpires <= System.currentTimeMillis()) {
+			mEntries.remove(key);
+			return false;
+		}
+
+		if (failure.mResponseCode != null) {
+			bundle.putInt(WebReceiver.RESPONSE_CODE, failure.mResponseCode);
+			bundle.putString(WebReceiver.RESPONSE_MESSAGE, failure.mResponseMessage);
+		}
+		if (failure.mException != null) {
+			bundle.putSerializable(WebReceiver.RESPONSE_EXCEPTION, failure.mException);
+		}
+		return true;
+	}
+
+	public synchronized void remove(String key) {
+		mEntries.remove(key);
+	}
+
+	public synchronized void clear() {
+		mEntries.clear();
+	}
+}
@@ -0,0 +1,137 @@
+package org.tsg.web;
+
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+
+import android.os.Bundle;
+
+/**
+ * Builds canonical cache keys for requests by streaming the url, method,
+ * params, headers and body through a SHA-1 digest. Param and header names are
+ * sorted so bundle iteration order doesn't matter, and every field is length
+ * prefixed so values can't run together. Nothing is concatenated, strings are
+ * encoded as UTF-8 into a small per-thread buffer as they are digested.
+ */
+final class RequestKey {
+
+	private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+	/**
+	 * Keys built before RequestKey were the String.hashCode of the request's
+	 * fields, never longer than this.
+	 */
+	static final int LEGACY_KEY_MAX_LENGTH = 11;
+
+	private static final ThreadLocal<RequestKey> BUILDERS = new ThreadLocal<RequestKey>() {
+		@Override
+		protected RequestKey initialValue() {
+			return new RequestKey();
+		}
+	};
+
+	private final MessageDigest mDigest;
+	private final byte[] mBuffer = new byte[256];
+	private int mLength;
+
+	private RequestKey() {
+		try {
+			mDigest = MessageDigest.getInstance("SHA-1");
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	public static String build(WebRequest request) {
+		return BUILDERS.get().digest(request);
+	}
+
+	private String digest(WebRequest request) {
+		mDigest.reset();
+		mLength = 0;
+
+		update(request.mUrl);
+		updateInt(request.mMethod == null ? -1 : request.mMethod);
+		update(request.mParams);
+		update(request.mHeaders);
+		update(request.mBody);
+
+		flush();
+		return toHex(mDigest.digest());
+	}
+
+	static String toHex(byte[] hash) {
+		char[] chars = new char[hash.length * 2];
+		for (int i = 0; i < hash.length; i++) {
+			chars[i * 2] = HEX[(hash[i] >> 4) & 0xf];
+			chars[i * 2 + 1] = HEX[hash[i] & 0xf];
+		}
+		return new String(chars);
+	}
+
+	private void update(Bundle bundle) {
+		if (bundle == null) {
+			updateInt(-1);
+			return;
+		}
+
+		String[] names = bundle.keySet().toArray(new String[bundle.size()]);
+		Arrays.sort(names);
+
+		updateInt(names.length);
+		for (String name : names) {
+			update(name);
+			update(String.valueOf(bundle.get(name)));
+		}
+	}
+
+	private void update(String s) {
+		if (s == null) {
+			updateInt(-1);
+			return;
+		}
+
+		int length = s.length();
+		updateInt(length);
+
+		for (int i = 0; i < length;) {
+			int c = s.codePointAt(i);
+			i += Character.charCount(c);
+
+			if (mLength > mBuffer.length - 4) {
+				flush();
+			}
+
+			if (c < 0x80) {
+				mBuffer[mLength++] = (byte) c;
+			} else if (c < 0x800) {
+				mBuffer[mLength++] = (byte) (0xc0 | (c >> 6));
+				mBuffer[mLength++] = (byte) (0x80 | (c & 0x3f));
+			} else if (c < 0x10000) {
+				mBuffer[mLength++] = (byte) (0xe0 | (c >> 12));
+				mBuffer[mLength++] = (byte) (0x80 | ((c >> 6) & 0x3f));
+				mBuffer[mLength++] = (byte) (0x80 | (c & 0x3f));
+			} else {
+				mBuffer[mLength++] = (byte) (0xf0 | (c >> 18));
+				mBuffer[mLength++] = (byte) (0x80 | ((c >> 12) & 0x3f));
+				mBuffer[mLength++] = (byte) (0x80 | ((c >> 6) & 0x3f));
+				mBuffer[mLength++] = (byte) (0x80 | (c & 0x3f));
+			}
+		}
+	}
+
+	private void updateInt(int i) {
+		if (mLength > mBuffer.length - 4) {
+			flush();
+		}
+		mBuffer[mLength++] = (byte) (i >> 24);
+		mBuffer[mLength++] = (byte) (i >> 16);
+		mBuffer[mLength++] = (byte) (i >> 8);
+		mBuffer[mLength++] = (byte) i;
+	}
+
+	private void flush() {
+		mDigest.update(mBuffer, 0, mLength);
+		mLength = 0;
+	}
+}
@@ -0,0 +1,197 @@
+package org.tsg.web;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import android.util.Log;
+
+/**
+ * Download of a response as byte ranges fetched at the same time, each written
+ * at its offset of the response file with positional writes. The calling
+ * thread reads the first range from the response to the initial request for
+ * bytes=0-, and the other ranges are taken in turn by it and by up to
+ * WebService.getSegmentThreads threads of a pool shared by all downloads. The
+ * calling thread keeps taking ranges itself, so a download never waits on pool
+ * threads that are busy with other downloads. It only waits for workers that
+ * have started, which stop early once any range fails; workers that start
+ * after the download is done return at once.
+ */
+final class SegmentedDownload {
+
+	// ranges smaller than this aren't worth a connection of their own
+	static final long MIN_SEGMENT_SIZE = 256 * 1024;
+
+	private static ExecutorService POOL;
+
+	private final WebClient mClient;
+	private final FileChannel mChannel;
+	private final long mLength;
+	private final int mSegments;
+	private final long mSegmentSize;
+	private final String mValidator;
+	// next range to be taken
+	private final AtomicInteger mNext = new AtomicInteger(1);
+	// first failure of any range, stops the others
+	private volatile Exception mFailure;
+	// workers running, and whether the download is done; guarded by this
+	private int mActive;
+	private boolean mDone;
+
+	/**
+	 * @param client
+	 * @param channel
+	 *          channel of the response file, at least length bytes long
+	 * @param length
+	 *          total length of the response
+	 * @param segments
+	 * @param validator
+	 *          strong ETag or Last-Modified date sent as If-Range, so each range
+	 *          is known to be of the same response
+	 */
+	SegmentedDownload(WebClient client, FileChannel channel, long length, int segments, String validator) {
+		mClient = client;
+		mChannel = channel;
+		mLength = length;
+		mSegments = segments;
+		mSegmentSize = (length + segments - 1) / segments;
+		mValidator = validator;
+	}
+
+	private static synchronized ExecutorService getPool() {
+		if (POOL == null) {
+			POOL = Executors.newFixedThreadPool(WebService.getSegmentThreads());
+		}
+		return POOL;
+	}
+
+	/**
+	 * Write the first range from response and fetch the others, returning once
+	 * all are written or throwing the first failure.
+	 *
+	 * @param response
+	 *          206 response to bytes=0-
+	 * @throws Exception
+	 */
+	void run(Transport.Response response) throws Exception {
+		int count = Math.min(mSegments - 1, WebService.getSegmentThreads());
+		for (int i = 0; i < count; i++) {
+			getPool().execute(new Runnable() {
+				public void run() {
+					work();
+				}
+			});
+		}
+
+		try {
+			copy(response, 0);
+			// the rest of the response is fetched as other ranges
+			response.abort();
+		} catch (Exception e) {
+			fail(e);
+		}
+		fetchRemaining();
+
+		// every range is taken, wait for those still being written by workers
+		synchronized (this) {
+			mDone = true;
+			while (mActive > 0) {
+				wait();
+			}
+		}
+
+		if (mFailure != null) {
+			throw mFailure;
+		}
+	}
+
+	private void work() {
+		synchronized (this) {
+			if (mDone) {
+				return;
+			}
+			mActive++;
+		}
+		try {
+			fetchRemaining();
+		} finally {
+			synchronized (this) {
+				mActive--;
+				notifyAll();
+			}
+		}
+	}
+
+	private void fetchRemaining() {
+		int segment;
+		while (mFailure == null && (segment = mNext.getAndIncrement()) < mSegments) {
+			try {
+				fetch(segment);
+			} catch (Exception e) {
+				fail(e);
+			}
+		}
+	}
+
+	private synchronized void fail(Exception e) {
+		if (mFailure == null) {
+			WebService.log(Log.WARN, "segmented download failed", e);
+			mFailure = e;
+		}
+	}
+
+	private void fetch(int segment) throws Exception {
+		long start = segment * mSegmentSize;
+		long end = Math.min(mLength, start + mSegmentSize) - 1;
+
+		Transport.Request request = mClient.getRangeRequest(start, end, mValidator);
+		// runs the WebClient hooks concurrently with other ranges, which the
+		// class description of WebClient requires overrides to allow
+		Transport.Response response = mClient.getTransport().execute(mClient, request);
+		try {
+			String contentRange = response.getHeader(WebService.HEADER_CONTENT_RANGE);
+			if (response.getCode() != 206 || WebClient.parseRangeStart(contentRange) != start) {
+				throw new IOException("range " + start + "-" + end + " not served, got " + response.getCode() + " " + contentRange);
+			}
+			copy(response, segment);
+		} catch (Exception e) {
+			response.abort();
+			throw e;
+		}
+		response.close();
+	}
+
+	/**
+	 * Write range of segment from the body of response at its offset.
+	 */
+	private void copy(Transport.Response response, int segment) throws IOException {
+		long position = segment * mSegmentSize;
+		long remaining = Math.min(mLength - position, mSegmentSize);
+
+		InputStream in = response.getBody();
+		if (in == null) {
+			throw new EOFException("empty range at " + position);
+		}
+
+		byte[] buffer = BufferPool.get().mBuffer;
+		while (remaining > 0) {
+			if (mFailure != null) {
+				throw new IOException("cancelled");
+			}
+			int len = in.read(buffer, 0, (int) Math.min(buffer.length, remaining));
+			if (len == -1) {
+				throw new EOFException("truncated range at " + position);
+			}
+			ByteBuffer src = ByteBuffer.wrap(buffer, 0, len);
+			while (src.hasRemaining()) {
+				position += mChannel.write(src, position);
+			}
+			remaining -= len;
+		}
+	}
+}
@@ -0,0 +1,177 @@
+package org.tsg.web;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * HTTP backend a WebClient makes its calls through. ApacheTransport, the
+ * default, uses the org.apache.http client and the WebClient hooks built on it;
+ * UrlConnectionTransport uses HttpURLConnection. Select one with
+ * WebService.setTransport.
+ *
+ * Implementations must be thread-safe, a single instance serves all calls.
+ */
+public interface Transport {
+
+	/**
+	 * Make request for client, returning once the status and headers are read.
+	 * The response body is left to be streamed from the returned response.
+	 *
+	 * @param client
+	 * @param request
+	 * @return
+	 * @throws Exception
+	 */
+	Response execute(WebClient client, Request request) throws Exception;
+
+	/**
+	 * Method, uri, headers and body of a call, built by WebClient.
+	 */
+	public static class Request {
+		final String mMethod;
+		final URI mUri;
+		final List<String[]> mHeaders = new ArrayList<String[]>();
+		byte[] mBody;
+		File mFile;
+		String mContentType;
+
+		Request(String method, URI uri) {
+			mMethod = method;
+			mUri = uri;
+		}
+
+		public String getMethod() {
+			return mMethod;
+		}
+
+		public URI getURI() {
+			return mUri;
+		}
+
+		/**
+		 * Header name and value pairs, in the order they are sent.
+		 *
+		 * @return
+		 */
+		public List<String[]> getHeaders() {
+			return mHeaders;
+		}
+
+		void addHeader(String name, String value) {
+			mHeaders.add(new String[] { name, value });
+		}
+
+		boolean containsHeader(String name) {
+			for (String[] header : mHeaders) {
+				if (header[0].equalsIgnoreCase(name)) {
+					return true;
+				}
+			}
+			return false;
+		}
+
+		public boolean hasBody() {
+			return mBody != null || mFile != null;
+		}
+
+		public String getContentType() {
+			return mContentType;
+		}
+
+		/**
+		 * Length of body in bytes, or -1 if none.
+		 *
+		 * @return
+		 */
+		public long getContentLength() {
+			if (mFile != null) {
+				return mFile.length();
+			}
+			return mBody == null ? -1 : mBody.length;
+		}
+
+		/**
+		 * Stream body to out, from file without reading it into memory.
+		 *
+		 * @param out
+		 * @throws IOException
+		 */
+		public void writeBody(OutputStream out) throws IOException {
+			if (mBody != null) {
+				out.write(mBody);
+				return;
+			}
+			if (mFile == null) {
+				return;
+			}
+
+			InputStream in = new FileInputStream(mFile);
+			try {
+				byte[] buffer = new byte[8192];
+				int len;
+				while ((len = in.read(buffer)) != -1) {
+					out.write(buffer, 0, len);
+				}
+			} finally {
+				in.close();
+			}
+		}
+	}
+
+	/**
+	 * Status, headers and streamed body of a call. Must be closed once the body
+	 * is read, or aborted if it won't be, to release the connection.
+	 */
+	public interface Response {
+		int getCode();
+
+		String getMessage();
+
+		/**
+		 * First value of header name, matched ignoring case, or null.
+		 *
+		 * @param name
+		 * @return
+		 */
+		String getHeader(String name);
+
+		/**
+		 * All values of header name, matched ignoring case.
+		 *
+		 * @param name
+		 * @return
+		 */
+		List<String> getHeaders(String name);
+
+		/**
+		 * Length of the decoded body in bytes, or -1 if unknown.
+		 *
+		 * @return
+		 */
+		long getContentLength();
+
+		/**
+		 * Body decoded of any gzip content encoding, or null if there is none.
+		 *
+		 * @return
+		 * @throws IOException
+		 */
+		InputStream getBody() throws IOException;
+
+		/**
+		 * Release the connection for reuse, discarding any unread body.
+		 */
+		void close();
+
+		/**
+		 * Drop the connection without reading the rest of the body.
+		 */
+		void abort();
+	}
+}
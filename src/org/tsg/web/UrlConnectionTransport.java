@@ -0,0 +1,143 @@
+package org.tsg.web;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Transport over HttpURLConnection, which has no dependency on org.apache.http
+ * and pools keep-alive connections itself. The WebClient hooks built on the
+ * Apache client, such as getHttpClient and setClientCookieStore, are not used;
+ * cookies are handled by the default java.net.CookieHandler if one is set.
+ */
+public class UrlConnectionTransport implements Transport {
+
+	public Transport.Response execute(WebClient client, Transport.Request request) throws IOException {
+		HttpURLConnection connection = (HttpURLConnection) request.getURI().toURL().openConnection();
+		connection.setRequestMethod(request.getMethod());
+		connection.setUseCaches(false);
+
+		for (String[] header : request.getHeaders()) {
+			connection.addRequestProperty(header[0], header[1]);
+		}
+		// requested explicitly so the body is decoded the same on every platform
+		if (connection.getRequestProperty(WebService.HEADER_ACCEPT_ENCODING) == null) {
+			connection.setRequestProperty(WebService.HEADER_ACCEPT_ENCODING, WebService.ENCODING_GZIP);
+		}
+
+		try {
+			if (request.hasBody()) {
+				connection.setDoOutput(true);
+				if (request.getContentType() != null && connection.getRequestProperty("Content-Type") == null) {
+					connection.setRequestProperty("Content-Type", request.getContentType());
+				}
+				long length = request.getContentLength();
+				if (length <= Integer.MAX_VALUE) {
+					connection.setFixedLengthStreamingMode((int) length);
+				} else {
+					connection.setChunkedStreamingMode(0);
+				}
+
+				OutputStream out = connection.getOutputStream();
+				try {
+					request.writeBody(out);
+				} finally {
+					out.close();
+				}
+			}
+
+			return new Response(connection, connection.getResponseCode());
+		} catch (IOException e) {
+			connection.disconnect();
+			throw e;
+		}
+	}
+
+	static class Response implements Transport.Response {
+		private final HttpURLConnection mConnection;
+		private final int mCode;
+		private InputStream mBody;
+
+		Response(HttpURLConnection connection, int code) {
+			mConnection = connection;
+			mCode = code;
+		}
+
+		public int getCode() {
+			return mCode;
+		}
+
+		public String getMessage() {
+			try {
+				return mConnection.getResponseMessage();
+			} catch (IOException e) {
+				return null;
+			}
+		}
+
+		public String getHeader(String name) {
+			List<String> values = getHeaders(name);
+			return values.isEmpty() ? null : values.get(0);
+		}
+
+		public List<String> getHeaders(String name) {
+			List<String> values = new ArrayList<String>();
+			// header names aren't matched ignoring case by every platform
+			for (Map.Entry<String, List<String>> entry : mConnection.getHeaderFields().entrySet()) {
+				if (name.equalsIgnoreCase(entry.getKey())) {
+					values.addAll(entry.getValue());
+				}
+			}
+			return values;
+		}
+
+		public long getContentLength() {
+			return isGzip() ? -1 : mConnection.getContentLength();
+		}
+
+		public InputStream getBody() throws IOException {
+			if (mBody != null) {
+				return mBody;
+			}
+			// no body to decode, and GzipInputStream would fail reading a header
+			if (mCode == 204 || mCode == 304) {
+				return null;
+			}
+
+			InputStream in = mCode >= 400 ? mConnection.getErrorStream() : mConnection.getInputStream();
+			if (in == null) {
+				return null;
+			}
+			mBody = isGzip() ? new GzipInputStream(in, BufferPool.get()) : in;
+			return mBody;
+		}
+
+		private boolean isGzip() {
+			String encoding = mConnection.getContentEncoding();
+			return encoding != null && encoding.equalsIgnoreCase(WebService.ENCODING_GZIP);
+		}
+
+		public void close() {
+			try {
+				InputStream in = mBody != null ? mBody : getBody();
+				if (in != null) {
+					// drain so the connection can be reused
+					byte[] buffer = BufferPool.get().mBuffer;
+					while (in.read(buffer) != -1) {
+					}
+					in.close();
+				}
+			} catch (IOException e) {
+				mConnection.disconnect();
+			}
+		}
+
+		public void abort() {
+			mConnection.disconnect();
+		}
+	}
+}
@@ -1,14 +1,26 @@
 package org.tsg.web;
 
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
 import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
 import java.net.URI;
 import java.net.URLEncoder;
+import java.security.MessageDigest;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
 import java.util.ArrayList;
+import java.util.Date;
 import java.util.Iterator;
 import java.util.List;
-import java.util.zip.GZIPInputStream;
+import java.util.Locale;
+import java.util.TimeZone;
+import java.util.concurrent.TimeUnit;
 
 import org.apache.http.Header;
 import org.apache.http.HeaderElement;
@@ -28,16 +40,23 @@ import org.apache.http.client.methods.HttpPut;
 import org.apache.http.client.methods.HttpUriRequest;
 import org.apache.http.client.params.ClientPNames;
 import org.apache.http.client.params.CookiePolicy;
+import org.apache.http.conn.ClientConnectionManager;
+import org.apache.http.conn.params.ConnManagerParams;
+import org.apache.http.conn.params.ConnPerRouteBean;
+import org.apache.http.conn.scheme.PlainSocketFactory;
+import org.apache.http.conn.scheme.Scheme;
+import org.apache.http.conn.scheme.SchemeRegistry;
+import org.apache.http.conn.ssl.SSLSocketFactory;
 import org.apache.http.entity.FileEntity;
 import org.apache.http.entity.HttpEntityWrapper;
 import org.apache.http.entity.StringEntity;
 import org.apache.http.impl.client.DefaultHttpClient;
+import org.apache.http.impl.conn.tsccm.ThreadSafeClientConnManager;
 import org.apache.http.message.BasicNameValuePair;
 import org.apache.http.params.BasicHttpParams;
 import org.apache.http.params.HttpParams;
 import org.apache.http.params.HttpProtocolParams;
 import org.apache.http.protocol.HttpContext;
-import org.apache.http.util.EntityUtils;
 
 import android.os.Bundle;
 
@@ -46,9 +65,28 @@ import android.os.Bundle;
  * and generates the result. Should extend this for implementing things such as
  * cookie storage or changing default values of the request.
  * 
+ * A segmented download (WebRequest.setSegments) executes the transport for its
+ * ranges on several threads at once with the same client, so overrides of the
+ * hooks the transport calls, getRequest, getHttpClient, getHttpParams,
+ * setClientCookieStore and handleClientCookieStore, must be thread-safe.
+ * 
  * @author Daniel Skinner <daniel@dasa.cc>
  */
 public class WebClient {
+
+	// pooled connections idle this long are closed
+	static final long IDLE_CONNECTION_TIMEOUT = 30;
+
+	// shared by all clients so connections are kept alive and reused
+	private static ClientConnectionManager CONNECTION_MANAGER;
+
+	private static final Transport DEFAULT_TRANSPORT = new ApacheTransport();
+
+	// charset of request bodies, the HTTP default
+	private static final String HTTP_CHARSET = "ISO-8859-1";
+
+	private static final String[] DATE_PATTERNS = { "EEE, dd MMM yyyy HH:mm:ss zzz", "EEEE, dd-MMM-yy HH:mm:ss zzz", "EEE MMM d HH:mm:ss yyyy" };
+
 	Bundle mHeaders;
 	Bundle mParams;
 	String mBody;
@@ -57,7 +95,38 @@ public class WebClient {
 	Integer mResponseCode;
 	String mResponseMessage;
 	byte[] mResponseBytes;
+	File mResponseFile;
+	// hex SHA-1 of mResponseFile, computed while streaming
+	String mResponseHash;
 	String mResponseContentType;
+	// charset parameter of mResponseContentType, null if none; response bytes
+	// are kept as received and decoded with it on demand
+	String mResponseCharSet;
+	String mResponseETag;
+	String mResponseLastModified;
+	// freshness lifetime in millis declared by the response, null if none
+	Long mResponseLifetime;
+	boolean mResponseNoStore;
+
+	// validators of a cached response, sent as If-None-Match and
+	// If-Modified-Since on GET requests when set
+	String mIfNoneMatch;
+	String mIfModifiedSince;
+
+	// directory large responses are streamed to, responses are only buffered in
+	// memory when null
+	File mCacheDir;
+
+	// partial download of a resumable request in mCacheDir, kept on failure and
+	// resumed from its end when its validator file exists
+	File mPartialFile;
+	// length of mPartialFile requested to be resumed from, 0 if not resuming
+	long mResumeOffset;
+
+	// byte ranges a GET response is split into, see WebRequest.setSegments
+	int mSegments;
+	// whether the last call asked for bytes=0- to start a segmented download
+	boolean mSegmented;
 
 	String mUrl;
 	Integer mMethod;
@@ -69,6 +138,7 @@ public class WebClient {
 		mHeaders = request.mHeaders;
 		mUrl = request.mUrl;
 		mMethod = request.mMethod;
+		mSegments = request.mSegments;
 	}
 
 	/**
@@ -156,12 +226,43 @@ public class WebClient {
 	}
 
 	/**
-	 * get HttpClient that supports gzip
+	 * Process wide, thread-safe connection pool. Allows WebService.POOL_SIZE
+	 * connections per route plus one for prefetches and the segment threads of
+	 * segmented downloads, and twice that in total, sized when first used.
+	 * Closes expired connections and those idle for IDLE_CONNECTION_TIMEOUT
+	 * seconds on each call.
+	 * 
+	 * @return
+	 */
+	static synchronized ClientConnectionManager getConnectionManager() {
+		if (CONNECTION_MANAGER == null) {
+			int size = WebService.getPoolSize() + 1 + WebService.getSegmentThreads();
+			HttpParams params = new BasicHttpParams();
+			ConnManagerParams.setMaxConnectionsPerRoute(params, new ConnPerRouteBean(size));
+			ConnManagerParams.setMaxTotalConnections(params, size * 2);
+
+			SchemeRegistry registry = new SchemeRegistry();
+			registry.register(new Scheme("http", PlainSocketFactory.getSocketFactory(), 80));
+			registry.register(new Scheme("https", SSLSocketFactory.getSocketFactory(), 443));
+
+			CONNECTION_MANAGER = new ThreadSafeClientConnManager(params, registry);
+		} else {
+			CONNECTION_MANAGER.closeExpiredConnections();
+			CONNECTION_MANAGER.closeIdleConnections(IDLE_CONNECTION_TIMEOUT, TimeUnit.SECONDS);
+		}
+		return CONNECTION_MANAGER;
+	}
+
+	/**
+	 * get HttpClient that supports gzip. Each call gets its own client, with its
+	 * own cookie store and params, on top of the shared connection pool of
+	 * getConnectionManager so connections are kept alive between calls.
+	 * Overrides that don't use the pool must not shut down the pool's manager.
 	 * 
 	 * @return
 	 */
 	protected DefaultHttpClient getHttpClient() {
-		DefaultHttpClient client = new DefaultHttpClient();
+		DefaultHttpClient client = new DefaultHttpClient(getConnectionManager(), null);
 
 		client.addRequestInterceptor(new HttpRequestInterceptor() {
 			public void process(HttpRequest request, HttpContext context) {
@@ -176,6 +277,10 @@ public class WebClient {
 			public void process(HttpResponse response, HttpContext context) {
 				// Inflate any responses compressed with gzip
 				final HttpEntity entity = response.getEntity();
+				if (entity == null) {
+					// such as 304 Not Modified
+					return;
+				}
 				final Header encoding = entity.getContentEncoding();
 				if (encoding != null) {
 					for (HeaderElement element : encoding.getElements()) {
@@ -205,7 +310,8 @@ public class WebClient {
 
 	/**
 	 * Override method to implement a global storage. Must provide helper method
-	 * in subclass to pass in subclass.class for starting service intent.
+	 * in subclass to pass in subclass.class for starting service intent. May be
+	 * called from several threads at once, see the class description.
 	 * 
 	 * @param client
 	 */
@@ -215,6 +321,7 @@ public class WebClient {
 
 	/**
 	 * Handle cookies after response has finished. Override to store globally.
+	 * May be called from several threads at once, see the class description.
 	 * 
 	 * @param cookieStore
 	 */
@@ -223,58 +330,764 @@ public class WebClient {
 	}
 
 	/**
+	 * Transport that makes the call, WebService.setTransport or ApacheTransport
+	 * by default.
+	 * 
+	 * @return
+	 */
+	protected Transport getTransport() {
+		Transport transport = WebService.getTransport();
+		return transport == null ? DEFAULT_TRANSPORT : transport;
+	}
+
+	/**
+	 * Builds transport request from method, uri, headers and body. Bodies are
+	 * encoded the same as getEntity.
+	 * 
+	 * @return
+	 * @throws Exception
+	 */
+	protected Transport.Request getTransportRequest() throws Exception {
+		Transport.Request request = new Transport.Request(getMethodName(), getURI());
+
+		if (mHeaders != null) {
+			for (String k : mHeaders.keySet()) {
+				Object v = mHeaders.get(k);
+				request.addHeader(String.valueOf(k), String.valueOf(v));
+			}
+		}
+
+		addConditionalHeaders(request);
+		addRangeHeaders(request);
+
+		if (mMethod != WebService.METHOD_POST && mMethod != WebService.METHOD_PUT) {
+			return request;
+		}
+
+		if (mFile != null) {
+			request.mFile = mFile;
+			request.mContentType = mHeaders == null ? null : mHeaders.getString("Content-Type");
+		} else if (mBody != null) {
+			request.mBody = mBody.getBytes(HTTP_CHARSET);
+			request.mContentType = "text/plain; charset=" + HTTP_CHARSET;
+		} else {
+			String form = "";
+			if (mParams != null) {
+				Iterator<String> iter = mParams.keySet().iterator();
+				while (iter.hasNext()) {
+					String k = iter.next();
+					Object v = mParams.get(k);
+					form += URLEncoder.encode(String.valueOf(k), HTTP_CHARSET) + "=" + URLEncoder.encode(String.valueOf(v), HTTP_CHARSET);
+					if (iter.hasNext())
+						form += "&";
+				}
+			}
+			request.mBody = form.getBytes(HTTP_CHARSET);
+			request.mContentType = "application/x-www-form-urlencoded";
+		}
+		return request;
+	}
+
+	private String getMethodName() {
+		if (mMethod == WebService.METHOD_POST) {
+			return "POST";
+		}
+		if (mMethod == WebService.METHOD_PUT) {
+			return "PUT";
+		}
+		if (mMethod == WebService.METHOD_DELETE) {
+			return "DELETE";
+		}
+		return "GET";
+	}
+
+	/**
+	 * Reads response into mResponseBytes, or when the entity is an image or too
+	 * large to hold in memory, streams it to mResponseFile in mCacheDir with a
+	 * fixed size buffer. Bytes are kept as received, see mResponseCharSet. Used
+	 * by ApacheTransport.
 	 * 
 	 * @param entity
 	 * @throws Exception
 	 */
 	protected void handleResponse(HttpEntity entity) throws Exception {
-		String charSet = EntityUtils.getContentCharSet(entity);
+		if (entity == null) {
+			mResponseBytes = new byte[0];
+			return;
+		}
+
+		if (mCacheDir != null && isStreamed(entity)) {
+			streamResponse(entity.getContent(), entity.getContentLength());
+			return;
+		}
+
+		readResponse(entity.getContent(), entity.getContentLength());
+	}
+
+	/**
+	 * Reads response of transports other than ApacheTransport, the same as
+	 * handleResponse(HttpEntity).
+	 * 
+	 * @param response
+	 * @throws Exception
+	 */
+	protected void handleResponse(Transport.Response response) throws Exception {
+		InputStream in = response.getBody();
+		if (in == null) {
+			mResponseBytes = new byte[0];
+			return;
+		}
+
+		long length = response.getContentLength();
+		if (mCacheDir != null && isStreamed(length)) {
+			streamResponse(in, length);
+			return;
+		}
+
+		readResponse(in, length);
+	}
+
+	/**
+	 * Read response into mResponseBytes, copying it once through the pooled
+	 * buffers of this thread.
+	 * 
+	 * @param in
+	 * @param length
+	 *          -1 if unknown
+	 * @throws IOException
+	 */
+	private void readResponse(InputStream in, long length) throws IOException {
+		try {
+			mResponseBytes = BufferPool.get().readFully(in, length);
+		} finally {
+			in.close();
+		}
+	}
+
+	/**
+	 * Whether response should bypass memory, based on content length and type.
+	 * Entities of unknown length are streamed as well, spilling to file once
+	 * WebContentProvider.FILE_THRESHOLD is reached.
+	 * 
+	 * @param entity
+	 * @return
+	 */
+	protected boolean isStreamed(HttpEntity entity) {
+		return isStreamed(entity.getContentLength());
+	}
+
+	/**
+	 * Whether response of length, -1 if unknown, should bypass memory.
+	 * 
+	 * @param length
+	 * @return
+	 */
+	protected boolean isStreamed(long length) {
+		if (length > WebContentProvider.FILE_THRESHOLD || length < 0) {
+			return true;
+		}
+		return mResponseContentType != null && mResponseContentType.contains("image");
+	}
+
+	/**
+	 * Copy response body to mResponseFile with a fixed size buffer. Responses of
+	 * unknown length are buffered until they outgrow
+	 * WebContentProvider.FILE_THRESHOLD and are left in mResponseBytes if they
+	 * never do.
+	 * 
+	 * @param in
+	 * @param length
+	 *          -1 if unknown
+	 * @throws IOException
+	 */
+	private void streamResponse(InputStream in, long length) throws IOException {
+		boolean image = mResponseContentType != null && mResponseContentType.contains("image");
+		boolean spill = image || length > WebContentProvider.FILE_THRESHOLD;
+
+		BufferPool pool = BufferPool.get();
+		ByteArrayOutputStream buffered = spill ? null : pool.getOutput();
+		OutputStream out = buffered;
+		File tmp = null;
+		MessageDigest digest;
+		try {
+			digest = MessageDigest.getInstance("SHA-1");
+		} catch (Exception e) {
+			digest = null;
+		}
+
+		try {
+			byte[] buffer = pool.mBuffer;
+			long count = 0;
+			int len;
+			while ((len = in.read(buffer)) != -1) {
+				count += len;
+				if (tmp == null && (spill || buffered.size() + len > WebContentProvider.FILE_THRESHOLD)) {
+					tmp = File.createTempFile("response", ".tmp", mCacheDir);
+					out = new FileOutputStream(tmp);
+					if (buffered != null) {
+						buffered.writeTo(out);
+						buffered = null;
+					}
+				}
+				out.write(buffer, 0, len);
+				if (digest != null) {
+					digest.update(buffer, 0, len);
+				}
+			}
+			// some transports report a dropped connection as the end of the body
+			if (count < length) {
+				throw new EOFException("truncated response, " + count + " of " + length + " bytes");
+			}
+		} catch (IOException e) {
+			if (tmp != null) {
+				tmp.delete();
+			}
+			throw e;
+		} finally {
+			in.close();
+			if (tmp != null) {
+				out.close();
+			}
+		}
 
-		if (charSet == null) {
-			mResponseBytes = EntityUtils.toByteArray(entity);
+		if (tmp == null) {
+			mResponseBytes = buffered.toByteArray();
 		} else {
-			mResponseBytes = EntityUtils.toString(entity, charSet).getBytes();
+			mResponseFile = tmp;
+			mResponseHash = digest == null ? null : RequestKey.toHex(digest.digest());
 		}
 	}
 
 	/**
-	 * Creates and calls HttpClient and new request object, setting headers as
-	 * necessary.
+	 * Charset parameter of content type, or null.
+	 */
+	static String getCharSet(String contentType) {
+		if (contentType == null) {
+			return null;
+		}
+		for (String param : contentType.split(";")) {
+			param = param.trim();
+			if (param.regionMatches(true, 0, "charset=", 0, 8)) {
+				String charSet = unquote(param.substring(8).trim());
+				return charSet.length() == 0 ? null : charSet;
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Makes the call through getTransport with the request of
+	 * getTransportRequest, setting the response fields.
 	 * 
 	 * @throws Exception
 	 */
 	protected void call() throws Exception {
 		mResponseCode = null;
 		mResponseMessage = null;
+		mResponseBytes = null;
+		mResponseFile = null;
+		mResponseHash = null;
+		mResponseETag = null;
+		mResponseLastModified = null;
+		mResponseCharSet = null;
+		mResponseLifetime = null;
+		mResponseNoStore = false;
+		mResumeOffset = 0;
+		mSegmented = false;
+
+		Transport.Request request = getTransportRequest();
+		Transport.Response response = getTransport().execute(this, request);
+
+		try {
+			execute(response);
+		} catch (Exception e) {
+			// release the connection rather than return it to the pool half read
+			response.abort();
+			throw e;
+		}
+		response.close();
+
+		if (mResponseCode == 416 && mResumeOffset > 0) {
+			// partial download no longer fits the resource, start over
+			deletePartial();
+			call();
+		}
+	}
+
+	private void execute(Transport.Response response) throws Exception {
+		mResponseCode = response.getCode();
+		mResponseMessage = response.getMessage();
+		mResponseContentType = response.getHeader("Content-Type");
+		mResponseCharSet = getCharSet(mResponseContentType);
+
+		mResponseETag = response.getHeader(WebService.HEADER_ETAG);
+		mResponseLastModified = response.getHeader(WebService.HEADER_LAST_MODIFIED);
+		handleFreshness(response);
+
+		if (isNotModified()) {
+			// cached response is still valid, don't download a body
+			return;
+		}
+
+		if (mPartialFile != null && (mResponseCode == 200 || mResponseCode == 206)) {
+			resumeResponse(response);
+			return;
+		}
+
+		if (mSegmented && mResponseCode == 206) {
+			if (segmentResponse(response)) {
+				return;
+			}
+			// the range holds the whole response, read it as a full one
+			mResponseCode = 200;
+		}
 
-		URI uri = getURI();
-		HttpUriRequest request = getRequest(uri);
+		if (response instanceof ApacheTransport.Response) {
+			handleResponse(((ApacheTransport.Response) response).getEntity());
+		} else {
+			handleResponse(response);
+		}
+	}
 
+	/**
+	 * Add If-None-Match and If-Modified-Since for validators of a cached response
+	 * to GET requests, unless the request already sets them.
+	 * 
+	 * @param request
+	 */
+	protected void addConditionalHeaders(Transport.Request request) {
+		if (mMethod != WebService.METHOD_GET) {
+			return;
+		}
+		if (mIfNoneMatch != null && !request.containsHeader(WebService.HEADER_IF_NONE_MATCH)) {
+			request.addHeader(WebService.HEADER_IF_NONE_MATCH, mIfNoneMatch);
+		}
+		if (mIfModifiedSince != null && !request.containsHeader(WebService.HEADER_IF_MODIFIED_SINCE)) {
+			request.addHeader(WebService.HEADER_IF_MODIFIED_SINCE, mIfModifiedSince);
+		}
+	}
+
+	/**
+	 * For a resumable GET with a partial download and its validator, ask for the
+	 * rest with Range, and with If-Range so a changed resource is sent in full.
+	 * A segmented GET asks for bytes=0- to learn the length and whether ranges
+	 * are supported. Content encoding is turned off, ranges of gzip data can't
+	 * be joined or resumed as plain data.
+	 * 
+	 * @param request
+	 */
+	protected void addRangeHeaders(Transport.Request request) {
+		boolean segmented = mPartialFile == null && mSegments > 1 && mCacheDir != null;
+		if ((mPartialFile == null && !segmented) || mMethod != WebService.METHOD_GET) {
+			return;
+		}
+		if (!request.containsHeader(WebService.HEADER_ACCEPT_ENCODING)) {
+			request.addHeader(WebService.HEADER_ACCEPT_ENCODING, "identity");
+		}
+		// revalidation of a cached response is a conditional request already
+		if (mIfNoneMatch != null || mIfModifiedSince != null || request.containsHeader(WebService.HEADER_RANGE)) {
+			return;
+		}
+
+		if (segmented) {
+			request.addHeader(WebService.HEADER_RANGE, "bytes=0-");
+			mSegmented = true;
+			return;
+		}
+
+		long length = mPartialFile.length();
+		String validator = length == 0 ? null : readValidator();
+		if (validator == null) {
+			return;
+		}
+		request.addHeader(WebService.HEADER_RANGE, "bytes=" + length + "-");
+		request.addHeader(WebService.HEADER_IF_RANGE, validator);
+		mResumeOffset = length;
+	}
+
+	/**
+	 * Write body of a 206 response to the end of mPartialFile, or of a 200
+	 * response over it when the server sent the whole resource, then move the
+	 * complete file to mResponseFile. The validator of a full response is saved
+	 * first so the download can be resumed if it fails.
+	 * 
+	 * @param response
+	 * @throws IOException
+	 */
+	private void resumeResponse(Transport.Response response) throws IOException {
+		boolean append = mResponseCode == 206;
+		if (append) {
+			long start = parseRangeStart(response.getHeader(WebService.HEADER_CONTENT_RANGE));
+			if (mResumeOffset == 0 || start != mResumeOffset) {
+				throw new IOException("unexpected range " + response.getHeader(WebService.HEADER_CONTENT_RANGE));
+			}
+		} else {
+			writeValidator(getRangeValidator(response));
+		}
+
+		BufferPool pool = BufferPool.get();
+		byte[] buffer = pool.mBuffer;
+		MessageDigest digest;
+		try {
+			digest = MessageDigest.getInstance("SHA-1");
+		} catch (Exception e) {
+			digest = null;
+		}
+
+		if (append && digest != null) {
+			// hash covers the whole response
+			digestFile(digest, mPartialFile);
+		}
+
+		long length = response.getContentLength();
+		long count = 0;
+		InputStream in = response.getBody();
+		OutputStream out = new FileOutputStream(mPartialFile, append);
+		try {
+			int len;
+			while (in != null && (len = in.read(buffer)) != -1) {
+				out.write(buffer, 0, len);
+				count += len;
+				if (digest != null) {
+					digest.update(buffer, 0, len);
+				}
+			}
+		} finally {
+			out.close();
+			if (in != null) {
+				in.close();
+			}
+		}
+
+		// some transports report a dropped connection as the end of the body,
+		// keep what was received to be resumed
+		long total = append ? parseRangeLength(response.getHeader(WebService.HEADER_CONTENT_RANGE)) : length;
+		if (count < length || mPartialFile.length() < total) {
+			throw new EOFException("truncated response at " + mPartialFile.length() + " bytes");
+		}
+
+		File tmp = File.createTempFile("response", ".tmp", mCacheDir);
+		if (!mPartialFile.renameTo(tmp)) {
+			tmp.delete();
+			throw new IOException("unable to move " + mPartialFile);
+		}
+		getValidatorFile().delete();
+
+		// the whole response is now held in mResponseFile
+		mResponseCode = 200;
+		mResponseFile = tmp;
+		mResponseHash = digest == null ? null : RequestKey.toHex(digest.digest());
+	}
+
+	/**
+	 * Fetch the response to a 206 answer of bytes=0- as WebRequest.setSegments
+	 * ranges written to mResponseFile. Returns false without reading the body of
+	 * responses too small to split, of unknown length, or without a validator to
+	 * check the other ranges against, so they are handled like any other.
+	 * 
+	 * @param response
+	 * @return
+	 * @throws Exception
+	 */
+	private boolean segmentResponse(Transport.Response response) throws Exception {
+		String contentRange = response.getHeader(WebService.HEADER_CONTENT_RANGE);
+		if (parseRangeStart(contentRange) != 0) {
+			throw new IOException("unexpected range " + contentRange);
+		}
+
+		long length = parseRangeLength(contentRange);
+		String validator = getRangeValidator(response);
+		if (length < 0 || validator == null) {
+			return false;
+		}
+		int segments = (int) Math.min(mSegments, length / SegmentedDownload.MIN_SEGMENT_SIZE);
+		if (segments < 2) {
+			return false;
+		}
+
+		File tmp = File.createTempFile("response", ".tmp", mCacheDir);
+		RandomAccessFile file = new RandomAccessFile(tmp, "rw");
+		try {
+			file.setLength(length);
+			new SegmentedDownload(this, file.getChannel(), length, segments, validator).run(response);
+		} catch (Exception e) {
+			file.close();
+			tmp.delete();
+			throw e;
+		}
+		file.close();
+
+		MessageDigest digest;
+		try {
+			digest = MessageDigest.getInstance("SHA-1");
+			digestFile(digest, tmp);
+		} catch (Exception e) {
+			digest = null;
+		}
+
+		// the whole response is now held in mResponseFile
+		mResponseCode = 200;
+		mResponseFile = tmp;
+		mResponseHash = digest == null ? null : RequestKey.toHex(digest.digest());
+		return true;
+	}
+
+	/**
+	 * GET request of the byte range start to end inclusive for a segmented
+	 * download, sent with If-Range validator.
+	 * 
+	 * @param start
+	 * @param end
+	 * @param validator
+	 * @return
+	 * @throws Exception
+	 */
+	Transport.Request getRangeRequest(long start, long end, String validator) throws Exception {
+		Transport.Request request = new Transport.Request(getMethodName(), getURI());
 		if (mHeaders != null) {
 			for (String k : mHeaders.keySet()) {
 				Object v = mHeaders.get(k);
 				request.addHeader(String.valueOf(k), String.valueOf(v));
 			}
 		}
+		if (!request.containsHeader(WebService.HEADER_ACCEPT_ENCODING)) {
+			request.addHeader(WebService.HEADER_ACCEPT_ENCODING, "identity");
+		}
+		request.addHeader(WebService.HEADER_RANGE, "bytes=" + start + "-" + end);
+		request.addHeader(WebService.HEADER_IF_RANGE, validator);
+		return request;
+	}
 
-		DefaultHttpClient client = getHttpClient();
-		client.setParams(getHttpParams());
-		setClientCookieStore(client);
-		HttpResponse response = client.execute(request);
-		handleClientCookieStore(client.getCookieStore());
+	/**
+	 * Strong ETag of response, or its Last-Modified date as weak etags can't be
+	 * used with If-Range. Null if it has neither.
+	 */
+	private static String getRangeValidator(Transport.Response response) {
+		String validator = response.getHeader(WebService.HEADER_ETAG);
+		if (validator == null || validator.startsWith("W/")) {
+			validator = response.getHeader(WebService.HEADER_LAST_MODIFIED);
+		}
+		return validator;
+	}
 
-		mResponseCode = response.getStatusLine().getStatusCode();
-		mResponseMessage = response.getStatusLine().getReasonPhrase();
+	private static void digestFile(MessageDigest digest, File file) throws IOException {
+		byte[] buffer = BufferPool.get().mBuffer;
+		InputStream in = new FileInputStream(file);
+		try {
+			int len;
+			while ((len = in.read(buffer)) != -1) {
+				digest.update(buffer, 0, len);
+			}
+		} finally {
+			in.close();
+		}
+	}
 
-		Header responseContentType = response.getFirstHeader("Content-Type");
-		mResponseContentType = responseContentType.getValue();
+	/**
+	 * Complete length of a Content-Range value such as "bytes 100-199/200", or
+	 * -1 if unknown or malformed.
+	 */
+	static long parseRangeLength(String contentRange) {
+		int slash = contentRange == null ? -1 : contentRange.lastIndexOf('/');
+		if (slash == -1) {
+			return -1;
+		}
+		try {
+			return Long.parseLong(contentRange.substring(slash + 1).trim());
+		} catch (NumberFormatException e) {
+			return -1;
+		}
+	}
+
+	/**
+	 * First byte position of a Content-Range value such as
+	 * "bytes 100-199/200", or -1 if malformed.
+	 */
+	static long parseRangeStart(String contentRange) {
+		if (contentRange == null) {
+			return -1;
+		}
+		String range = contentRange.trim();
+		if (!range.regionMatches(true, 0, "bytes ", 0, 6)) {
+			return -1;
+		}
+		int dash = range.indexOf('-', 6);
+		if (dash == -1) {
+			return -1;
+		}
+		try {
+			return Long.parseLong(range.substring(6, dash).trim());
+		} catch (NumberFormatException e) {
+			return -1;
+		}
+	}
+
+	private File getValidatorFile() {
+		return new File(mPartialFile.getPath() + ".validator");
+	}
+
+	/**
+	 * Validator of mPartialFile, or null if there is none.
+	 */
+	private String readValidator() {
+		File file = getValidatorFile();
+		if (!file.exists()) {
+			return null;
+		}
+		try {
+			InputStream in = new FileInputStream(file);
+			try {
+				String validator = new String(BufferPool.get().readFully(in, file.length()), "UTF-8");
+				return validator.length() == 0 ? null : validator;
+			} finally {
+				in.close();
+			}
+		} catch (IOException e) {
+			e.printStackTrace();
+			return null;
+		}
+	}
+
+	/**
+	 * Save validator of a full response about to be written to mPartialFile, or
+	 * remove any old one if null so the download isn't resumed.
+	 */
+	private void writeValidator(String validator) throws IOException {
+		File file = getValidatorFile();
+		if (validator == null) {
+			file.delete();
+			return;
+		}
+		OutputStream out = new FileOutputStream(file);
+		try {
+			out.write(validator.getBytes("UTF-8"));
+		} finally {
+			out.close();
+		}
+	}
+
+	private void deletePartial() {
+		mPartialFile.delete();
+		getValidatorFile().delete();
+	}
 
-		handleResponse(response.getEntity());
+	/**
+	 * Whether the last call was answered with 304 Not Modified for validators of
+	 * a cached response, in which case no response body was read.
+	 * 
+	 * @return
+	 */
+	protected boolean isNotModified() {
+		return mResponseCode != null && mResponseCode == 304 && (mIfNoneMatch != null || mIfModifiedSince != null);
+	}
+
+	/**
+	 * Sets mResponseLifetime and mResponseNoStore from the Cache-Control, Expires
+	 * and Age headers of response. max-age takes precedence over s-maxage, which
+	 * takes precedence over Expires. no-cache gives a lifetime of 0 so the
+	 * response is revalidated before reuse.
+	 * 
+	 * @param response
+	 */
+	protected void handleFreshness(Transport.Response response) {
+		Long maxAge = null;
+		Long sharedMaxAge = null;
+		boolean noCache = false;
+
+		for (String header : response.getHeaders(WebService.HEADER_CACHE_CONTROL)) {
+			for (String directive : header.split(",")) {
+				int i = directive.indexOf('=');
+				String name = (i == -1 ? directive : directive.substring(0, i)).trim();
+				String value = i == -1 ? null : unquote(directive.substring(i + 1).trim());
+				if (name.equalsIgnoreCase("no-store")) {
+					mResponseNoStore = true;
+				} else if (name.equalsIgnoreCase("no-cache")) {
+					noCache = true;
+				} else if (name.equalsIgnoreCase("max-age")) {
+					maxAge = parseSeconds(value);
+				} else if (name.equalsIgnoreCase("s-maxage")) {
+					sharedMaxAge = parseSeconds(value);
+				}
+			}
+		}
+
+		if (mResponseNoStore || noCache) {
+			mResponseLifetime = 0L;
+			return;
+		}
+
+		if (maxAge != null) {
+			mResponseLifetime = maxAge;
+		} else if (sharedMaxAge != null) {
+			mResponseLifetime = sharedMaxAge;
+		} else {
+			String expires = response.getHeader(WebService.HEADER_EXPIRES);
+			if (expires == null) {
+				return;
+			}
+			// an invalid date such as "0" means already expired
+			long lifetime = 0;
+			Date expiresDate = parseDate(expires);
+			if (expiresDate != null) {
+				Date date = parseDate(response.getHeader(WebService.HEADER_DATE));
+				long now = date == null ? System.currentTimeMillis() : date.getTime();
+				lifetime = Math.max(0, expiresDate.getTime() - now);
+			}
+			mResponseLifetime = lifetime;
+		}
+
+		// time already spent in upstream caches
+		Long age = parseSeconds(response.getHeader(WebService.HEADER_AGE));
+		if (age != null) {
+			mResponseLifetime = Math.max(0, mResponseLifetime - age);
+		}
+	}
+
+	/**
+	 * Delta-seconds header value in millis, or null if absent or malformed.
+	 */
+	private static Long parseSeconds(String value) {
+		if (value == null) {
+			return null;
+		}
+		try {
+			return Math.max(0, Long.parseLong(value.trim())) * 1000;
+		} catch (NumberFormatException e) {
+			return null;
+		}
+	}
+
+	/**
+	 * HTTP-date in any of the RFC 1123, RFC 850 or asctime formats, or null.
+	 */
+	static Date parseDate(String value) {
+		if (value == null) {
+			return null;
+		}
+		for (String pattern : DATE_PATTERNS) {
+			// SimpleDateFormat isn't thread-safe
+			SimpleDateFormat format = new SimpleDateFormat(pattern, Locale.US);
+			format.setTimeZone(TimeZone.getTimeZone("GMT"));
+			try {
+				return format.parse(value.trim());
+			} catch (ParseException e) {
+				// try next
+			}
+		}
+		return null;
+	}
+
+	private static String unquote(String value) {
+		if (value.length() >= 2 && value.startsWith("\"") && value.endsWith("\"")) {
+			return value.substring(1, value.length() - 1);
+		}
+		return value;
 	}
 
 	/**
-	 * Simple HttpEntityWrapper that inflates the wrapped HttpEntity by passing it
-	 * through GZIPInputStream.
+	 * Simple HttpEntityWrapper that inflates the wrapped HttpEntity with the
+	 * pooled Inflater of the calling thread, so only one may be read at a time
+	 * per thread.
 	 */
 	protected static class InflatingEntity extends HttpEntityWrapper {
 		public InflatingEntity(HttpEntity wrapped) {
@@ -283,7 +1096,7 @@ public class WebClient {
 
 		@Override
 		public InputStream getContent() throws IOException {
-			return new GZIPInputStream(wrappedEntity.getContent());
+			return new GzipInputStream(wrappedEntity.getContent(), BufferPool.get());
 		}
 
 		@Override
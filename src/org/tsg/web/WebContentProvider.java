@@ -3,18 +3,29 @@ package org.tsg.web;
 import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
+import java.io.FileInputStream;
 import java.io.IOException;
-import java.text.SimpleDateFormat;
-import java.util.Date;
-import java.util.Locale;
+import java.io.InputStream;
+import java.lang.reflect.Method;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 import android.content.ContentProvider;
 import android.content.ContentValues;
 import android.content.Context;
 import android.database.Cursor;
+import android.database.MatrixCursor;
+import android.database.MergeCursor;
 import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteDiskIOException;
+import android.database.sqlite.SQLiteDoneException;
 import android.database.sqlite.SQLiteOpenHelper;
+import android.database.sqlite.SQLiteStatement;
 import android.net.Uri;
 import android.os.Bundle;
 import android.os.ParcelFileDescriptor;
@@ -23,7 +34,27 @@ import android.util.Log;
 public class WebContentProvider extends ContentProvider {
 
 	static int MAX_CACHE_SIZE = 5000;
+	// responses larger than this many bytes are stored to file instead of blob.
+	// SQLite's own measurements (Internal Versus External BLOBs, sqlite.org)
+	// put the read crossover between blobs and files near 100 KB at common
+	// page sizes, well below the ~2 MB CursorWindow limit
+	static int FILE_THRESHOLD = 100 * 1024;
+	// compress compressible responses of at least this many bytes when enabled
+	static boolean COMPRESSION = false;
+	static int COMPRESSION_THRESHOLD = 1024;
+	static final MemoryCache MEMORY_CACHE = new MemoryCache(1024 * 1024);
 	static String PACKAGE_NAME;
+	// path of multi-key queries, keys are never this
+	static final String PATH_KEYS = "keys";
+	static final String PATH_STATS = "stats";
+	static final String PATH_URL = "url";
+	static final String PATH_TAG = "tag";
+	// path of blob chunk queries, followed by the body hash
+	static final String PATH_CHUNK = "chunk";
+	// subdirectory of getFilesDir() holding side files of responses
+	static final String CACHE_DIR = "webcache";
+	// suffix of partial downloads of resumable requests kept in CACHE_DIR
+	static final String PARTIAL_SUFFIX = ".part";
 
 	public static Uri getDefaultAuthority(Context context) {
 		if (PACKAGE_NAME == null) {
@@ -34,6 +65,22 @@ public class WebContentProvider extends ContentProvider {
 		return Uri.parse("content://" + PACKAGE_NAME);
 	}
 
+	/**
+	 * Directory holding side files of cached responses and temp files of
+	 * responses being downloaded, created if missing. Nothing else is stored
+	 * here so any file not referenced by the cache db can be removed.
+	 * 
+	 * @param context
+	 * @return
+	 */
+	static File getCacheDir(Context context) {
+		File dir = new File(context.getApplicationContext().getFilesDir(), CACHE_DIR);
+		if (!dir.isDirectory() && !dir.mkdirs()) {
+			WebService.log(Log.WARN, "unable to create cache dir", dir);
+		}
+		return dir;
+	}
+
 	@Override
 	public boolean onCreate() {
 		return false;
@@ -47,7 +94,12 @@ public class WebContentProvider extends ContentProvider {
 
 	@Override
 	public ParcelFileDescriptor openFile(Uri uri, String mode) {
-		File f = new File(getContext().getFilesDir(), uri.getLastPathSegment());
+		String data = Database.getInstance(getContext()).getData(uri.getLastPathSegment());
+		if (data == null) {
+			return null;
+		}
+
+		File f = new File(data);
 		ParcelFileDescriptor pfd;
 
 		try {
@@ -60,52 +112,231 @@ public class WebContentProvider extends ContentProvider {
 		return pfd;
 	}
 
+	/**
+	 * Store the "response" bytes of values under the key in the last path
+	 * segment of uri. Files and hashes aren't taken from callers, who may be
+	 * other apps; responses streamed to a file are stored by WebService through
+	 * Database.put directly.
+	 */
 	@Override
 	public Uri insert(Uri uri, ContentValues values) {
 		String key = uri.getLastPathSegment();
-		String uuid = values.getAsString("uuid");
-		String type = values.getAsString("type");
-		byte[] response = values.getAsByteArray("response");
-		String contentType = values.getAsString("contentType");
-		Database.getInstance(getContext()).put(key, uuid, type, response, contentType);
+		Database.getInstance(getContext()).put(key, values.getAsByteArray("response"), null, null, getRecord(values));
 		return uri;
 	}
 
+	/**
+	 * Insert all values in a single transaction, either all are stored or none
+	 * are. Each of values takes the same keys as insert plus "key", the request
+	 * key to store it under, defaulting to the last path segment of uri. If any
+	 * of values can't be prepared nothing is stored and 0 is returned.
+	 */
+	@Override
+	public int bulkInsert(Uri uri, ContentValues[] values) {
+		Database database = Database.getInstance(getContext());
+		List<Database.PutTask> tasks = new ArrayList<Database.PutTask>(values.length);
+
+		for (ContentValues v : values) {
+			String key = v.containsKey("key") ? v.getAsString("key") : uri.getLastPathSegment();
+			Database.PutTask task = database.preparePut(key, v.getAsByteArray("response"), null, null, getRecord(v));
+			if (task == null) {
+				for (Database.PutTask prepared : tasks) {
+					prepared.discard();
+				}
+				return 0;
+			}
+			tasks.add(task);
+		}
+
+		return database.putAll(tasks) ? tasks.size() : 0;
+	}
+
+	/**
+	 * Maps insert values to Database.RECORD_COLUMNS.
+	 * 
+	 * @param values
+	 * @return
+	 */
+	static ContentValues getRecord(ContentValues values) {
+		Long expires = values.getAsLong("expires");
+		if (expires == null) {
+			expires = System.currentTimeMillis();
+		}
+
+		ContentValues record = new ContentValues();
+		record.put(Database.COL_UUID, values.getAsString("uuid"));
+		record.put(Database.COL_TYPE, values.getAsString("type"));
+		record.put(Database.COL_MIME_TYPE, values.getAsString("contentType"));
+		record.put(Database.COL_EXPIRES, expires);
+		record.put(Database.COL_ETAG, values.getAsString("etag"));
+		record.put(Database.COL_LAST_MODIFIED, values.getAsString("lastModified"));
+		record.put(Database.COL_URL, values.getAsString("url"));
+		record.put(Database.COL_CHARSET, values.getAsString("charset"));
+		record.put(Database.TAGS, values.getAsString("tags"));
+		return record;
+	}
+
+	/**
+	 * Delete the record of the key in the last path segment of uri. Paths of
+	 * PATH_URL or PATH_TAG followed by a url prefix or tag delete all matching
+	 * records instead. Side files of records and copies in memory are removed as
+	 * well.
+	 */
 	@Override
-	public int delete(Uri arg0, String arg1, String[] arg2) {
+	public int delete(Uri uri, String selection, String[] selectionArgs) {
+		Database database = Database.getInstance(getContext());
+		List<String> segments = uri.getPathSegments();
+
+		if (segments.size() == 1) {
+			return database.delete(segments.get(0));
+		}
+
+		if (segments.size() == 2 && PATH_URL.equals(segments.get(0))) {
+			return database.deleteByUrlPrefix(segments.get(1));
+		}
+
+		if (segments.size() == 2 && PATH_TAG.equals(segments.get(0))) {
+			return database.deleteByTag(segments.get(1));
+		}
+
 		return 0;
 	}
 
+	/**
+	 * Refresh the timestamp and expiry of a record whose response is unchanged,
+	 * such as after a 304 Not Modified, without rewriting the body.
+	 */
 	@Override
 	public int update(Uri uri, ContentValues values, String selection, String[] selectionArgs) {
-		return 0;
+		Long expires = values.getAsLong("expires");
+		if (expires == null) {
+			return 0;
+		}
+		return Database.getInstance(getContext()).refresh(uri.getLastPathSegment(), expires) ? 1 : 0;
 	}
 
+	/**
+	 * Query the record of the key in the last path segment of uri. If the last
+	 * path segment is PATH_KEYS, query the records of all keys in selectionArgs
+	 * at once instead, with the key as an extra last column. If it is
+	 * PATH_STATS, query name and value rows of CacheStats. A path of PATH_CHUNK
+	 * followed by a body hash queries the chunk of the blob at the offset and
+	 * length in selectionArgs, for reading blobs left out of the response column
+	 * from another process.
+	 */
 	@Override
 	public Cursor query(Uri uri, String[] projection, String selection, String[] selectionArgs, String sortOrder) {
+		List<String> segments = uri.getPathSegments();
+		if (segments.size() == 2 && PATH_CHUNK.equals(segments.get(0))) {
+			if (selectionArgs == null || selectionArgs.length != 2) {
+				throw new IllegalArgumentException("chunk query needs offset and length");
+			}
+			int len = Math.min(Integer.parseInt(selectionArgs[1]), BlobInputStream.CHUNK_SIZE);
+			return Database.getInstance(getContext()).getChunkCursor(segments.get(1), Long.parseLong(selectionArgs[0]), len);
+		}
+
+		if (PATH_KEYS.equals(uri.getLastPathSegment())) {
+			return Database.getInstance(getContext()).getCursors(selectionArgs == null ? new String[0] : selectionArgs);
+		}
+
+		if (PATH_STATS.equals(uri.getLastPathSegment())) {
+			Bundle stats = Database.getInstance(getContext()).getStats();
+			MatrixCursor cursor = new MatrixCursor(new String[] { "name", "value" }, stats.size());
+			for (String name : stats.keySet()) {
+				cursor.addRow(new Object[] { name, stats.getLong(name) });
+			}
+			return cursor;
+		}
+
 		Cursor c = Database.getInstance(getContext()).getCursor(uri.getLastPathSegment());
 		return c;
 	}
 
 	/**
-	 * Cache Database to store responses from http client.
+	 * Cache Database to store responses from http client. Response bodies are
+	 * stored once per content hash in the body table and reference counted by
+	 * records of the cache table, so requests returning identical responses
+	 * share storage. The entry view joins the two.
 	 */
 	public static class Database extends SQLiteOpenHelper {
 		private static final String DATABASE_NAME = "serviceResponseCache";
-		private static final int DATABASE_VERSION = 1;
+		private static final int DATABASE_VERSION = 9;
 		private static final String TABLE_CACHE = "cache";
+		private static final String TABLE_BODY = "body";
+		private static final String TABLE_TAG = "tag";
+		private static final String VIEW_ENTRY = "entry";
 		private static final String COL_KEY = "_ID";
-		private static final String COL_UUID = "uuid";
+		static final String COL_UUID = "uuid";
 		private static final String COL_RESPONSE = "response";
 		private static final String COL_DATA = "_data";
-		private static final String COL_MIME_TYPE = "mime_type";
-		private static final String COL_TYPE = "type";
+		static final String COL_MIME_TYPE = "mime_type";
+		static final String COL_TYPE = "type";
 		private static final String COL_TIMESTAMP = "timestamp";
+		static final String COL_EXPIRES = "expires";
+		private static final String COL_SIZE = "size";
+		private static final String COL_ACCESSED = "accessed";
+		private static final String COL_CODEC = "codec";
+		private static final String COL_BODY = "body";
+		private static final String COL_HASH = "hash";
+		private static final String COL_REFS = "refs";
+		static final String COL_ETAG = "etag";
+		static final String COL_LAST_MODIFIED = "last_modified";
+		static final String COL_URL = "url";
+		static final String COL_CHARSET = "charset";
+		private static final String COL_TAG = "tag";
+		// newline separated tags of a record passed to put, stored in TABLE_TAG
+		static final String TAGS = "tags";
+
+		// keys per IN query, well under SQLite's default limit of 999 variables
+		private static final int MAX_QUERY_KEYS = 500;
+
+		// temp files younger than this may be in use and are kept by compact
+		private static final long TEMP_FILE_MAX_AGE = 60 * 60 * 1000L;
+		// partial downloads untouched this long are unlikely to be resumed
+		private static final long PARTIAL_FILE_MAX_AGE = 7 * 24 * 60 * 60 * 1000L;
+		private static final int AUTO_VACUUM_INCREMENTAL = 2;
+		// pages freed per incremental_vacuum step
+		private static final int VACUUM_STEP = 256;
+
+		/**
+		 * Columns of a cache record provided by the caller of put, in addition to
+		 * the key, body and timestamps maintained by Database.
+		 */
+		private static final String[] RECORD_COLUMNS = { COL_UUID, COL_MIME_TYPE, COL_TYPE, COL_EXPIRES, COL_ETAG, COL_LAST_MODIFIED, COL_URL, COL_CHARSET };
+
+		/**
+		 * Fraction of MAX_CACHE_SIZE to prune down to once the budget is exceeded,
+		 * so that every insert near the limit doesn't trigger another prune.
+		 */
+		private static final float PRUNE_TARGET = 0.9f;
 
 		private static Database instance;
 		private SQLiteDatabase mDatabase;
 		private Context mContext;
 
+		// running total of body bytes and side file bytes held in cache
+		private long mCacheSize;
+		private final AtomicBoolean mPruneScheduled = new AtomicBoolean();
+
+		// all writes other than migrations go through the writer thread
+		private CacheWriter mWriter;
+
+		private SQLiteStatement mContainsStatement;
+		private SQLiteStatement mAccessStatement;
+		private SQLiteStatement mFreshStatement;
+		private SQLiteStatement mUnexpiredStatement;
+		private SQLiteStatement mUpsertStatement;
+		private SQLiteStatement mBodyOfStatement;
+		private SQLiteStatement mRefsStatement;
+		private SQLiteStatement mAddRefsStatement;
+		private SQLiteStatement mInsertBodyStatement;
+		private SQLiteStatement mRefreshStatement;
+		private SQLiteStatement mDeleteTagsStatement;
+		private SQLiteStatement mInsertTagStatement;
+
+		// cleared once a lookup finds no records left under legacy keys
+		private volatile boolean mHasLegacyKeys;
+
 		private Database(Context context) {
 			super(context, DATABASE_NAME, null, DATABASE_VERSION);
 			mContext = context;
@@ -121,16 +352,177 @@ public class WebContentProvider extends ContentProvider {
 
 		@Override
 		public void onCreate(SQLiteDatabase database) {
-			database.execSQL("create table cache (_ID integer primary key, uuid text, response blob, _data text, mime_type text, type text, timestamp date)");
+			database.execSQL("create table body (hash text primary key, response blob, _data text, codec integer not null default 0, size integer not null default 0, refs integer not null default 0)");
+			database.execSQL("create table cache (_ID text primary key, uuid text, body text, mime_type text, type text, timestamp integer not null default 0, expires integer not null default 0, accessed integer not null default 0, etag text, last_modified text, url text, charset text)");
+			database.execSQL("create index cache_accessed on cache (accessed)");
+			database.execSQL("create index cache_expires on cache (expires)");
+			database.execSQL("create index cache_body on cache (body)");
+			database.execSQL("create index cache_url on cache (url)");
+			createTagTable(database);
+			createEntryView(database);
+		}
+
+		/**
+		 * Tags of cache records for invalidation with deleteByTag. Tags of a record
+		 * are dropped along with it by trigger, except when replaced by put which
+		 * replaces its tags itself.
+		 * 
+		 * @param database
+		 */
+		private static void createTagTable(SQLiteDatabase database) {
+			database.execSQL("create table tag (tag text not null, _ID text not null, primary key (tag, _ID))");
+			database.execSQL("create index tag_id on tag (_ID)");
+			database.execSQL("create trigger cache_delete_tags after delete on cache begin delete from tag where _ID = old._ID; end");
+		}
+
+		private static void createEntryView(SQLiteDatabase database) {
+			database.execSQL("drop view if exists entry");
+			database.execSQL("create view entry as select cache._ID as _ID, uuid, body, response, _data, mime_type, type, timestamp, expires, accessed, codec, size from cache left join body on cache.body = body.hash");
 		}
 
 		@Override
 		public void onUpgrade(SQLiteDatabase database, int oldVersion, int newVersion) {
-			database.execSQL("drop table if exists cache");
+			if (oldVersion < 2) {
+				database.execSQL("alter table cache add column size integer not null default 0");
+				database.execSQL("alter table cache add column accessed integer not null default 0");
+				database.execSQL("update cache set size = ifnull(length(response), 0)");
+				database.execSQL("create index cache_accessed on cache (accessed)");
+
+				// side files can only be measured from here
+				Cursor cursor = database.rawQuery("select _ID, _data from cache where _data is not null", null);
+				while (cursor.moveToNext()) {
+					long length = new File(cursor.getString(1)).length();
+					database.execSQL("update cache set size = size + ? where _ID=?", new Object[] { length, cursor.getString(0) });
+				}
+				cursor.close();
+			}
+
+			if (oldVersion < 3) {
+				// timestamp was stored as local time text, rebuild table to hold epoch
+				// millis; expiry of existing records is unknown so treat as expired.
+				database.execSQL("create table cache_v3 (_ID integer primary key, uuid text, response blob, _data text, mime_type text, type text, timestamp integer not null default 0, expires integer not null default 0, size integer not null default 0, accessed integer not null default 0)");
+				database.execSQL("insert into cache_v3 select _ID, uuid, response, _data, mime_type, type, ifnull(strftime('%s', timestamp, 'utc') * 1000, 0), ifnull(strftime('%s', timestamp, 'utc') * 1000, 0), size, accessed from cache");
+				database.execSQL("drop table cache");
+				database.execSQL("alter table cache_v3 rename to cache");
+				database.execSQL("create index cache_accessed on cache (accessed)");
+				database.execSQL("create index cache_expires on cache (expires)");
+			}
+
+			if (oldVersion < 4) {
+				// keys are now hex digests, rebuild table with a text primary key
+				database.execSQL("create table cache_v4 (_ID text primary key, uuid text, response blob, _data text, mime_type text, type text, timestamp integer not null default 0, expires integer not null default 0, size integer not null default 0, accessed integer not null default 0)");
+				database.execSQL("insert into cache_v4 select cast(_ID as text), uuid, response, _data, mime_type, type, timestamp, expires, size, accessed from cache");
+				database.execSQL("drop table cache");
+				database.execSQL("alter table cache_v4 rename to cache");
+				database.execSQL("create index cache_accessed on cache (accessed)");
+				database.execSQL("create index cache_expires on cache (expires)");
+			}
+
+			if (oldVersion < 5) {
+				database.execSQL("alter table cache add column codec integer not null default 0");
+			}
+
+			if (oldVersion < 6) {
+				// move bodies to their own table; content of existing records is not
+				// hashed, each keeps a body of its own under a key derived name that
+				// can't collide with a content hash.
+				database.execSQL("create table body (hash text primary key, response blob, _data text, codec integer not null default 0, size integer not null default 0, refs integer not null default 0)");
+				database.execSQL("insert into body select 'k' || _ID, response, _data, codec, size, 1 from cache");
+				database.execSQL("create table cache_v6 (_ID text primary key, uuid text, body text, mime_type text, type text, timestamp integer not null default 0, expires integer not null default 0, accessed integer not null default 0)");
+				database.execSQL("insert into cache_v6 select _ID, uuid, 'k' || _ID, mime_type, type, timestamp, expires, accessed from cache");
+				database.execSQL("drop table cache");
+				database.execSQL("alter table cache_v6 rename to cache");
+				database.execSQL("create index cache_accessed on cache (accessed)");
+				database.execSQL("create index cache_expires on cache (expires)");
+				database.execSQL("create index cache_body on cache (body)");
+				createEntryView(database);
+			}
+
+			if (oldVersion < 7) {
+				database.execSQL("alter table cache add column etag text");
+				database.execSQL("alter table cache add column last_modified text");
+			}
+
+			if (oldVersion < 8) {
+				database.execSQL("alter table cache add column url text");
+				database.execSQL("create index cache_url on cache (url)");
+				createTagTable(database);
+			}
+
+			if (oldVersion < 9) {
+				// earlier responses were re-encoded to the default charset, which a
+				// null charset decodes them with
+				database.execSQL("alter table cache add column charset text");
+			}
 		}
 
 		public void open() {
 			mDatabase = getWritableDatabase();
+			enableWriteAheadLogging(mDatabase);
+			mWriter = new CacheWriter(mDatabase);
+
+			mContainsStatement = mDatabase.compileStatement("select count(*) from cache where _ID=?");
+			mAccessStatement = mDatabase.compileStatement("update cache set accessed=? where _ID=?");
+			mFreshStatement = mDatabase.compileStatement("select count(*) from cache where _ID=? and timestamp>?");
+			mUnexpiredStatement = mDatabase.compileStatement("select count(*) from cache where _ID=? and expires>?");
+			mUpsertStatement = mDatabase.compileStatement(getUpsertSql());
+			mRefreshStatement = mDatabase.compileStatement("update cache set timestamp=?, expires=? where _ID=?");
+			mBodyOfStatement = mDatabase.compileStatement("select body from cache where _ID=?");
+			mRefsStatement = mDatabase.compileStatement("select refs from body where hash=?");
+			mAddRefsStatement = mDatabase.compileStatement("update body set refs = refs + ? where hash=?");
+			mInsertBodyStatement = mDatabase.compileStatement("insert into body (hash, response, _data, codec, size, refs) values (?, ?, ?, ?, ?, 1)");
+			mDeleteTagsStatement = mDatabase.compileStatement("delete from tag where _ID=?");
+			mInsertTagStatement = mDatabase.compileStatement("insert or ignore into tag (tag, _ID) values (?, ?)");
+
+			SQLiteStatement total = mDatabase.compileStatement("select ifnull(sum(size), 0) from body");
+			synchronized (this) {
+				mCacheSize = total.simpleQueryForLong();
+			}
+			total.close();
+
+			SQLiteStatement legacy = mDatabase.compileStatement("select count(*) from cache where length(_ID) <= " + RequestKey.LEGACY_KEY_MAX_LENGTH);
+			mHasLegacyKeys = legacy.simpleQueryForLong() != 0;
+			legacy.close();
+
+			if (isOverBudget()) {
+				schedulePrune();
+			}
+
+			compact();
+		}
+
+		/**
+		 * insert or replace of _ID, body, timestamp, accessed, then RECORD_COLUMNS
+		 * 
+		 * @return
+		 */
+		private static String getUpsertSql() {
+			StringBuilder columns = new StringBuilder("_ID, body, timestamp, accessed");
+			StringBuilder values = new StringBuilder("?, ?, ?, ?");
+			for (String column : RECORD_COLUMNS) {
+				columns.append(", ").append(column);
+				values.append(", ?");
+			}
+			return "insert or replace into cache (" + columns + ") values (" + values + ")";
+		}
+
+		/**
+		 * Enable write-ahead logging where the platform supports it (API 11+) so
+		 * readers don't block on the writer thread. Looked up reflectively since
+		 * the build targets an older API.
+		 * 
+		 * @param database
+		 */
+		private static void enableWriteAheadLogging(SQLiteDatabase database) {
+			try {
+				Method method = SQLiteDatabase.class.getMethod("enableWriteAheadLogging");
+				Object enabled = method.invoke(database);
+				WebService.log(Log.DEBUG, "write-ahead logging enabled:", enabled);
+			} catch (NoSuchMethodException e) {
+				// not available on this platform
+			} catch (Exception e) {
+				e.printStackTrace();
+			}
 		}
 
 		@Override
@@ -142,82 +534,967 @@ public class WebContentProvider extends ContentProvider {
 		}
 
 		/**
-		 * TODO implement
+		 * Size budget of the cache in bytes, derived from MAX_CACHE_SIZE kilobytes.
+		 * 
+		 * @return
 		 */
-		private void prune() {
-			String sql = "select * from " + TABLE_CACHE + " order by " + COL_TIMESTAMP;
-			Cursor cursor = mDatabase.rawQuery(sql, null);
+		private static long getBudget() {
+			return MAX_CACHE_SIZE * 1024L;
+		}
+
+		private synchronized boolean isOverBudget() {
+			return mCacheSize > getBudget();
+		}
 
-			int size = 0;
-			// while (cursor.moveToNext()) {
-			// int i = cursor.getColumnIndex(COL_DATA);
-			// byte[] bytes = cursor.getBlob(i);
-			// if (bytes != null)
-			// size += bytes.length;
-			// }
+		/**
+		 * CacheStats counters along with current entry count and sizes.
+		 * 
+		 * @return
+		 */
+		public Bundle getStats() {
+			Bundle stats = CacheStats.getCounters();
 
-			cursor.close();
+			Cursor cursor = mDatabase.rawQuery("select (select count(*) from cache), ifnull(sum(case when _data is null then size else 0 end), 0), ifnull(sum(case when _data is null then 0 else size end), 0) from body", null);
+			try {
+				if (cursor.moveToFirst()) {
+					stats.putLong(CacheStats.ENTRIES, cursor.getLong(0));
+					stats.putLong(CacheStats.INLINE_SIZE, cursor.getLong(1));
+					stats.putLong(CacheStats.FILE_SIZE, cursor.getLong(2));
+				}
+			} finally {
+				cursor.close();
+			}
 
-			WebService.log(Log.INFO, "total col_data size:", size);
+			synchronized (this) {
+				stats.putLong(CacheStats.SIZE, mCacheSize);
+			}
+			stats.putLong(CacheStats.MAX_SIZE, getBudget());
+			return stats;
 		}
 
 		/**
-		 * Either inserts or updates record based on whether PK key exists.
+		 * Queue compaction of the cache on the writer thread, in steps so request
+		 * writes queued meanwhile aren't held up for long:
+		 * 
+		 * side files are reconciled with the body table, moving files of older
+		 * versions into the cache dir, deleting files no body references and temp
+		 * files older than TEMP_FILE_MAX_AGE, and dropping bodies whose file is
+		 * gone along with their records;
+		 * 
+		 * then free pages of the db are returned to the file system, by
+		 * incremental_vacuum in steps of VACUUM_STEP pages. A db created without
+		 * incremental auto_vacuum is converted with a single VACUUM, only once
+		 * free pages make up a quarter of it.
+		 */
+		public void compact() {
+			mWriter.execute(new CacheWriter.Task() {
+				private long mFreed;
+				private List<String> mRemoved = new ArrayList<String>();
+
+				@Override
+				void write(SQLiteDatabase database) {
+					mFreed = reconcileFiles(mRemoved);
+				}
+
+				@Override
+				void committed() {
+					synchronized (Database.this) {
+						mCacheSize -= mFreed;
+					}
+					for (String key : mRemoved) {
+						MEMORY_CACHE.remove(key);
+					}
+				}
+			});
+			mWriter.execute(new VacuumTask());
+		}
+
+		/**
+		 * Delete every record and body along with all files in the cache dir, on
+		 * the writer thread so no write queued before is left half applied.
+		 * Returns once the cache is empty.
+		 * 
+		 * @return false if the records couldn't be deleted
+		 */
+		public boolean clear() {
+			try {
+				mWriter.submit(new CacheWriter.Task() {
+					@Override
+					void write(SQLiteDatabase database) {
+						database.delete(TABLE_TAG, null, null);
+						database.delete(TABLE_CACHE, null, null);
+						database.delete(TABLE_BODY, null, null);
+					}
+
+					@Override
+					void committed() {
+						synchronized (Database.this) {
+							mCacheSize = 0;
+						}
+						MEMORY_CACHE.clear();
+
+						File[] files = getCacheDir(mContext).listFiles();
+						if (files != null) {
+							for (File file : files) {
+								file.delete();
+							}
+						}
+					}
+				});
+			} catch (Throwable t) {
+				t.printStackTrace();
+				return false;
+			}
+			mWriter.execute(new VacuumTask());
+			return true;
+		}
+
+		/**
+		 * Must be called on the writer thread, inside a transaction.
+		 * 
+		 * @param removed
+		 *          keys of records dropped because their file is gone
+		 * @return bytes of bodies dropped
+		 */
+		private long reconcileFiles(List<String> removed) {
+			File dir = getCacheDir(mContext);
+			Set<String> referenced = new HashSet<String>();
+			long freed = 0;
+
+			Cursor cursor = mDatabase.query(TABLE_BODY, new String[] { COL_HASH, COL_DATA, COL_SIZE }, COL_DATA + " is not null", null, null, null, null);
+			try {
+				while (cursor.moveToNext()) {
+					String hash = cursor.getString(0);
+					File file = new File(cursor.getString(1));
+
+					if (file.exists() && !dir.equals(file.getParentFile())) {
+						File moved = new File(dir, hash);
+						if (file.renameTo(moved)) {
+							ContentValues values = new ContentValues();
+							values.put(COL_DATA, moved.getAbsolutePath());
+							mDatabase.update(TABLE_BODY, values, COL_HASH + "=?", new String[] { hash });
+							file = moved;
+						}
+					}
+
+					if (file.exists()) {
+						referenced.add(file.getName());
+						continue;
+					}
+
+					WebService.log(Log.WARN, "cache file missing", file);
+					Cursor keys = mDatabase.query(TABLE_CACHE, new String[] { COL_KEY }, COL_BODY + "=?", new String[] { hash }, null, null, null);
+					try {
+						while (keys.moveToNext()) {
+							removed.add(keys.getString(0));
+						}
+					} finally {
+						keys.close();
+					}
+					mDatabase.delete(TABLE_CACHE, COL_BODY + "=?", new String[] { hash });
+					mDatabase.delete(TABLE_BODY, COL_HASH + "=?", new String[] { hash });
+					freed += cursor.getLong(2);
+				}
+			} finally {
+				cursor.close();
+			}
+
+			File[] files = dir.listFiles();
+			if (files != null) {
+				long staleTemp = System.currentTimeMillis() - TEMP_FILE_MAX_AGE;
+				long stalePartial = System.currentTimeMillis() - PARTIAL_FILE_MAX_AGE;
+				int deleted = 0;
+				for (File file : files) {
+					if (referenced.contains(file.getName())) {
+						continue;
+					}
+					// temp files may belong to a download or put in progress
+					if (file.getName().endsWith(".tmp") && file.lastModified() > staleTemp) {
+						continue;
+					}
+					// kept along with their validator files until resumed
+					if (file.getName().contains(PARTIAL_SUFFIX) && file.lastModified() > stalePartial) {
+						continue;
+					}
+					if (file.delete()) {
+						deleted++;
+					}
+				}
+				WebService.log(Log.INFO, "deleted", deleted, "orphaned cache files");
+			}
+
+			return freed;
+		}
+
+		/**
+		 * One step of compact's vacuum, queueing the next step while free pages
+		 * remain.
+		 */
+		private class VacuumTask extends CacheWriter.Task {
+			@Override
+			boolean isTransactional() {
+				return false;
+			}
+
+			@Override
+			void write(SQLiteDatabase database) {
+				long free = queryLong("pragma freelist_count");
+				if (free == 0) {
+					return;
+				}
+
+				if (queryLong("pragma auto_vacuum") != AUTO_VACUUM_INCREMENTAL) {
+					if (free * 4 >= queryLong("pragma page_count")) {
+						WebService.log(Log.INFO, "converting cache db to incremental vacuum");
+						mDatabase.execSQL("pragma auto_vacuum = " + AUTO_VACUUM_INCREMENTAL);
+						mDatabase.execSQL("vacuum");
+					}
+					return;
+				}
+
+				// incremental_vacuum frees one page per step of the statement
+				Cursor cursor = mDatabase.rawQuery("pragma incremental_vacuum(" + VACUUM_STEP + ")", null);
+				try {
+					cursor.getCount();
+				} finally {
+					cursor.close();
+				}
+
+				if (free > VACUUM_STEP) {
+					mWriter.execute(new VacuumTask());
+				}
+			}
+		}
+
+		private long queryLong(String sql) {
+			SQLiteStatement statement = mDatabase.compileStatement(sql);
+			try {
+				return statement.simpleQueryForLong();
+			} finally {
+				statement.close();
+			}
+		}
+
+		/**
+		 * Queue a prune on the writer thread unless one is already pending.
+		 */
+		private void schedulePrune() {
+			if (!mPruneScheduled.compareAndSet(false, true)) {
+				return;
+			}
+
+			mWriter.execute(new CacheWriter.Task() {
+				@Override
+				void write(SQLiteDatabase database) {
+					mPruneScheduled.set(false);
+					prune();
+				}
+			});
+		}
+
+		/**
+		 * Evict least recently used records, along with any side files, until the
+		 * cache fits within PRUNE_TARGET of the budget.
+		 */
+		void prune() {
+			long target = (long) (getBudget() * PRUNE_TARGET);
+
+			SQLiteStatement total = mDatabase.compileStatement("select ifnull(sum(size), 0) from body");
+			long size = total.simpleQueryForLong();
+			total.close();
+
+			if (size <= getBudget()) {
+				synchronized (this) {
+					mCacheSize = size;
+				}
+				return;
+			}
+
+			// expired records go first, then least recently used
+			String now = String.valueOf(System.currentTimeMillis());
+			Cursor expired = mDatabase.query(TABLE_CACHE, new String[] { COL_KEY, COL_BODY }, COL_EXPIRES + "<?", new String[] { now }, null, null, COL_EXPIRES);
+			long freed = evict(expired, size - target);
+			Cursor lru = mDatabase.query(TABLE_CACHE, new String[] { COL_KEY, COL_BODY }, null, null, null, null, COL_ACCESSED);
+			freed += evict(lru, size - target - freed);
+
+			synchronized (this) {
+				mCacheSize -= freed;
+			}
+
+			WebService.log(Log.INFO, "pruned", freed, "bytes of", size);
+		}
+
+		/**
+		 * Delete records of cursor in order until at least amount bytes are freed.
+		 * Bodies are only freed, along with their side files, once no record
+		 * references them. Cursor is closed.
+		 * 
+		 * @param cursor
+		 *          projection of COL_KEY, COL_BODY
+		 * @param amount
+		 * @return bytes freed
+		 */
+		private long evict(Cursor cursor, long amount) {
+			long freed = 0;
+			try {
+				while (freed < amount && cursor.moveToNext()) {
+					String key = cursor.getString(0);
+
+					if (mDatabase.delete(TABLE_CACHE, COL_KEY + "=?", new String[] { key }) == 0) {
+						continue;
+					}
+
+					MEMORY_CACHE.remove(key);
+					long released = release(cursor.getString(1));
+					freed += released;
+
+					CacheStats.sEvictions.incrementAndGet();
+					CacheStats.sEvictedBytes.addAndGet(released);
+				}
+			} finally {
+				cursor.close();
+			}
+			return freed;
+		}
+
+		/**
+		 * Drop a reference to body, deleting it and its side file when it was the
+		 * last. Must be called on the writer thread.
+		 * 
+		 * @param hash
+		 * @return bytes freed
+		 */
+		private long release(String hash) {
+			if (hash == null) {
+				return 0;
+			}
+
+			Cursor cursor = mDatabase.query(TABLE_BODY, new String[] { COL_REFS, COL_DATA, COL_SIZE }, COL_HASH + "=?", new String[] { hash }, null, null, null);
+			try {
+				if (!cursor.moveToFirst()) {
+					return 0;
+				}
+
+				if (cursor.getLong(0) > 1) {
+					addRefs(hash, -1);
+					return 0;
+				}
+
+				mDatabase.delete(TABLE_BODY, COL_HASH + "=?", new String[] { hash });
+				String data = cursor.getString(1);
+				if (data != null && !new File(data).delete()) {
+					WebService.log(Log.WARN, "unable to delete cache file", data);
+				}
+				return cursor.getLong(2);
+			} finally {
+				cursor.close();
+			}
+		}
+
+		private void addRefs(String hash, long refs) {
+			mAddRefsStatement.bindLong(1, refs);
+			mAddRefsStatement.bindString(2, hash);
+			mAddRefsStatement.execute();
+		}
+
+		/**
+		 * Reference count of body, or -1 if no such body exists.
+		 * 
+		 * @param hash
+		 * @return
+		 */
+		private long getRefs(String hash) {
+			try {
+				mRefsStatement.bindString(1, hash);
+				return mRefsStatement.simpleQueryForLong();
+			} catch (SQLiteDoneException e) {
+				return -1;
+			}
+		}
+
+		/**
+		 * Hash of body referenced by key, or null if no record exists for key.
 		 * 
 		 * @param key
-		 * @param uuid
-		 * @param response
+		 * @return
 		 */
+		private String getBodyOf(String key) {
+			try {
+				mBodyOfStatement.bindString(1, key);
+				return mBodyOfStatement.simpleQueryForString();
+			} catch (SQLiteDoneException e) {
+				return null;
+			}
+		}
+
+		/**
+		 * Side file path of key, or null if response of key is not stored to file.
+		 * 
+		 * @param key
+		 * @return
+		 */
+		public String getData(String key) {
+			Cursor cursor = mDatabase.query(VIEW_ENTRY, new String[] { COL_DATA }, COL_KEY + "=?", new String[] { key }, null, null, null);
+			try {
+				return cursor.moveToFirst() ? cursor.getString(0) : null;
+			} finally {
+				cursor.close();
+			}
+		}
+
+		private static MessageDigest newDigest() {
+			try {
+				return MessageDigest.getInstance("SHA-1");
+			} catch (NoSuchAlgorithmException e) {
+				throw new IllegalStateException(e);
+			}
+		}
+
+		static String hash(byte[] bytes) {
+			return RequestKey.toHex(newDigest().digest(bytes));
+		}
+
+		static String hash(File file) throws IOException {
+			MessageDigest digest = newDigest();
+			InputStream in = new FileInputStream(file);
+			try {
+				byte[] buffer = new byte[8192];
+				int len;
+				while ((len = in.read(buffer)) != -1) {
+					digest.update(buffer, 0, len);
+				}
+			} finally {
+				in.close();
+			}
+			return RequestKey.toHex(digest.digest());
+		}
+
+		/**
+		 * Record access time of key for least recently used eviction. Written in
+		 * the background alongside other pending writes, readers don't wait.
+		 * 
+		 * @param key
+		 */
+		private void touch(final String key) {
+			final long accessed = System.currentTimeMillis();
+			mWriter.execute(new CacheWriter.Task() {
+				@Override
+				boolean isBatched() {
+					return true;
+				}
+
+				@Override
+				void write(SQLiteDatabase database) {
+					mAccessStatement.bindLong(1, accessed);
+					mAccessStatement.bindString(2, key);
+					mAccessStatement.execute();
+				}
+			});
+		}
+
 		public void put(String key, String uuid, String type, byte[] response, String contentType) {
-			// TODO check size of response, if too big, store on file system and
-			// save reference to record
-			// TODO write as rawQuery and use builtin datetime() for method
-			// contains
+			ContentValues record = new ContentValues();
+			record.put(COL_UUID, uuid);
+			record.put(COL_TYPE, type);
+			record.put(COL_MIME_TYPE, contentType);
+			record.put(COL_EXPIRES, System.currentTimeMillis());
+			put(key, response, null, null, record);
+		}
 
-			String data = null;
+		/**
+		 * Either inserts or updates record based on whether PK key exists. The
+		 * response body is stored once per content hash; if an identical body is
+		 * already cached the record references it and the new copy is discarded.
+		 * 
+		 * Images and responses over FILE_THRESHOLD are stored on the file system
+		 * with a reference saved to the body. Other responses are stored as a blob,
+		 * deflated first if COMPRESSION is enabled and the content type is
+		 * compressible. Cache files are always replaced by renaming a new file over
+		 * the old, never rewritten in place.
+		 * 
+		 * @param key
+		 * @param response
+		 *          response bytes, or null if streamed to file
+		 * @param file
+		 *          temp file response was streamed to, moved into place as the
+		 *          body's side file
+		 * @param hash
+		 *          hex SHA-1 of response if already known, otherwise computed
+		 * @param record
+		 *          values of RECORD_COLUMNS, such as COL_EXPIRES, the epoch millis
+		 *          after which the response is considered expired
+		 */
+		public void put(String key, byte[] response, File file, String hash, ContentValues record) {
+			PutTask task = preparePut(key, response, file, hash, record);
+			if (task == null) {
+				return;
+			}
 
-			if (contentType.contains("image") || response.length > 1000000) {
-				try {
-					File f = new File(mContext.getFilesDir(), key);
-					data = f.getAbsolutePath();
-
-					FileOutputStream fos = new FileOutputStream(f);// mContext.openFileOutput(key,
-																													// MODE_PRIVATE);
-					fos.write(response);
-					fos.close();
-					response = null;
-				} catch (FileNotFoundException e) {
-					// TODO Auto-generated catch block
-					e.printStackTrace();
-				} catch (IOException e) {
-					// TODO Auto-generated catch block
-					e.printStackTrace();
+			try {
+				mWriter.submit(task);
+			} catch (Throwable t) {
+				MEMORY_CACHE.remove(key);
+				t.printStackTrace();
+			}
+
+			if (isOverBudget()) {
+				schedulePrune();
+			}
+		}
+
+		/**
+		 * Put all tasks from preparePut in a single transaction, either all records
+		 * are stored or none are.
+		 * 
+		 * @param tasks
+		 * @return false if the transaction failed
+		 */
+		public boolean putAll(final List<PutTask> tasks) {
+			if (tasks.isEmpty()) {
+				return true;
+			}
+
+			try {
+				mWriter.submit(new CacheWriter.Group(tasks));
+			} catch (Throwable t) {
+				for (PutTask task : tasks) {
+					MEMORY_CACHE.remove(task.mKey);
+				}
+				t.printStackTrace();
+				return false;
+			} finally {
+				if (isOverBudget()) {
+					schedulePrune();
 				}
 			}
+			return true;
+		}
 
-			ContentValues values = new ContentValues();
-			values.put(COL_KEY, key);
-			values.put(COL_UUID, uuid);
-			values.put(COL_RESPONSE, response);
-			values.put(COL_DATA, data);
-			values.put(COL_TYPE, type);
-			values.put(COL_TIMESTAMP, getTimeStamp());
-			values.put(COL_MIME_TYPE, contentType);
+		/**
+		 * Hash, compress or spill response to a temp file as described in put,
+		 * ready to be written on the writer thread.
+		 * 
+		 * @return null if the response couldn't be prepared
+		 */
+		PutTask preparePut(String key, byte[] response, File file, String hash, ContentValues record) {
+			String contentType = record.getAsString(COL_MIME_TYPE);
+			byte[] bytes = response;
+			long size = 0;
+			int codec = Codec.NONE;
 
 			try {
-				if (contains(key)) {
-					mDatabase.update(TABLE_CACHE, values, "_ID=?", new String[] { key });
+				if (file != null) {
+					size = file.length();
+					if (hash == null) {
+						hash = hash(file);
+					}
+				} else if (response != null) {
+					size = response.length;
+					if (hash == null) {
+						hash = hash(response);
+					}
+
+					if ((contentType != null && contentType.contains("image")) || response.length > FILE_THRESHOLD) {
+						file = File.createTempFile(key, ".tmp", getCacheDir(mContext));
+						FileOutputStream fos = new FileOutputStream(file);
+						try {
+							fos.write(response);
+						} finally {
+							fos.close();
+						}
+						response = null;
+					} else if (COMPRESSION && response.length >= COMPRESSION_THRESHOLD && Codec.isCompressible(contentType)) {
+						byte[] deflated = Codec.deflate(response);
+						if (deflated != null) {
+							response = deflated;
+							size = deflated.length;
+							codec = Codec.DEFLATE;
+						}
+					}
 				} else {
-					mDatabase.insert(TABLE_CACHE, null, values);
+					// nothing to store, cache an empty body
+					response = new byte[0];
+					bytes = response;
+					hash = hash(response);
+				}
+			} catch (IOException e) {
+				e.printStackTrace();
+				if (file != null) {
+					file.delete();
 				}
+				return null;
+			}
+
+			return new PutTask(key, hash, response, file, size, codec, bytes, record);
+		}
+
+		/**
+		 * Batched upsert of a response record, see put. Side files are moved into
+		 * place on the writer thread so they can't race a prune of the same body.
+		 */
+		class PutTask extends CacheWriter.Task {
+			private final String mKey;
+			private final String mHash;
+			private final byte[] mResponse;
+			private final File mFile;
+			private final long mSize;
+			private final int mCodec;
+			private final byte[] mBytes;
+			private final ContentValues mRecord;
+			private long mAdded;
+			private long mFreed;
+			// false if an identical body was already stored
+			private boolean mStored;
+
+			public PutTask(String key, String hash, byte[] response, File file, long size, int codec, byte[] bytes, ContentValues record) {
+				mKey = key;
+				mHash = hash;
+				mResponse = response;
+				mFile = file;
+				mSize = size;
+				mCodec = codec;
+				mBytes = bytes;
+				mRecord = record;
+			}
+
+			@Override
+			boolean isBatched() {
+				return true;
+			}
+
+			/**
+			 * Delete the file of a task that won't be written, which would otherwise
+			 * have been moved into place or deleted by write.
+			 */
+			void discard() {
+				if (mFile != null) {
+					mFile.delete();
+				}
+			}
+
+			@Override
+			void write(SQLiteDatabase database) {
+				mAdded = 0;
+				mFreed = 0;
+				mStored = false;
+
+				String previous = getBodyOf(mKey);
+				boolean same = mHash.equals(previous);
+
+				if (getRefs(mHash) != -1) {
+					// body already stored, drop the new copy
+					if (mFile != null) {
+						mFile.delete();
+					}
+					if (!same) {
+						addRefs(mHash, 1);
+					}
+				} else {
+					String data = null;
+					if (mFile != null) {
+						File f = new File(getCacheDir(mContext), mHash);
+						if (!mFile.renameTo(f)) {
+							mFile.delete();
+							throw new IllegalStateException("unable to move " + mFile + " to " + f);
+						}
+						data = f.getAbsolutePath();
+					}
+
+					SQLiteStatement s = mInsertBodyStatement;
+					s.clearBindings();
+					s.bindString(1, mHash);
+					if (mResponse == null) {
+						s.bindNull(2);
+					} else {
+						s.bindBlob(2, mResponse);
+					}
+					bindString(s, 3, data);
+					s.bindLong(4, mCodec);
+					s.bindLong(5, mSize);
+					s.execute();
+					mAdded = mSize;
+					mStored = true;
+				}
+
+				long now = System.currentTimeMillis();
+				SQLiteStatement s = mUpsertStatement;
+				s.clearBindings();
+				s.bindString(1, mKey);
+				s.bindString(2, mHash);
+				s.bindLong(3, now);
+				s.bindLong(4, now);
+				for (int i = 0; i < RECORD_COLUMNS.length; i++) {
+					Object value = mRecord.get(RECORD_COLUMNS[i]);
+					if (value == null) {
+						s.bindNull(i + 5);
+					} else if (value instanceof Number) {
+						s.bindLong(i + 5, ((Number) value).longValue());
+					} else {
+						s.bindString(i + 5, String.valueOf(value));
+					}
+				}
+				s.execute();
+
+				mDeleteTagsStatement.bindString(1, mKey);
+				mDeleteTagsStatement.execute();
+				String tags = mRecord.getAsString(TAGS);
+				if (tags != null) {
+					for (String tag : tags.split("\n")) {
+						if (tag.length() != 0) {
+							mInsertTagStatement.bindString(1, tag);
+							mInsertTagStatement.bindString(2, mKey);
+							mInsertTagStatement.execute();
+						}
+					}
+				}
+
+				if (previous != null && !same) {
+					mFreed = release(previous);
+				}
+			}
+
+			@Override
+			void committed() {
+				synchronized (Database.this) {
+					mCacheSize += mAdded - mFreed;
+				}
+				MEMORY_CACHE.put(mKey, mBytes);
+
+				if (!mStored) {
+					CacheStats.sDeduplicated.incrementAndGet();
+				} else if (mFile != null) {
+					CacheStats.sStoredFile.incrementAndGet();
+					CacheStats.sStoredFileBytes.addAndGet(mAdded);
+				} else {
+					CacheStats.sStoredInline.incrementAndGet();
+					CacheStats.sStoredInlineBytes.addAndGet(mAdded);
+				}
+			}
+		}
+
+		private static void bindString(SQLiteStatement statement, int index, String value) {
+			if (value == null) {
+				statement.bindNull(index);
+			} else {
+				statement.bindString(index, value);
+			}
+		}
+
+		/**
+		 * Delete record of key.
+		 * 
+		 * @param key
+		 * @return number of records deleted
+		 */
+		public int delete(String key) {
+			return delete(COL_KEY + "=?", new String[] { key });
+		}
+
+		/**
+		 * Delete records of all requests whose url starts with prefix, such as
+		 * every page of a list endpoint. Query params of GET requests aren't part
+		 * of the url matched. Records cached before urls were stored never match.
+		 * 
+		 * @param prefix
+		 * @return number of records deleted
+		 */
+		public int deleteByUrlPrefix(String prefix) {
+			if (prefix.length() == 0) {
+				return delete(COL_URL + " is not null", null);
+			}
+			int last = prefix.length() - 1;
+			char c = prefix.charAt(last);
+			if (c == '\uFFFF' || (c >= '\uD800' && c <= '\uDFFF')) {
+				// can't be incremented to an upper bound, which would wrap or split a
+				// surrogate pair; substr counts code points as codePointCount does
+				return delete("substr(" + COL_URL + ",1,?)=?", new String[] { String.valueOf(prefix.codePointCount(0, prefix.length())), prefix });
+			}
+			// range over the url index rather than like, which can't use it
+			String upper = prefix.substring(0, last) + (char) (c + 1);
+			return delete(COL_URL + ">=? and " + COL_URL + "<?", new String[] { prefix, upper });
+		}
+
+		/**
+		 * Delete records of all requests tagged with tag.
+		 * 
+		 * @param tag
+		 * @return number of records deleted
+		 * @see WebRequest#addTag(String)
+		 */
+		public int deleteByTag(String tag) {
+			return delete(COL_KEY + " in (select " + COL_KEY + " from " + TABLE_TAG + " where " + COL_TAG + "=?)", new String[] { tag });
+		}
+
+		/**
+		 * Delete records matching where with a single statement on the writer
+		 * thread, releasing their bodies and dropping them from MEMORY_CACHE.
+		 * 
+		 * @param where
+		 * @param args
+		 * @return number of records deleted
+		 */
+		private int delete(final String where, final String[] args) {
+			final List<String> keys = new ArrayList<String>();
+			CacheWriter.Task task = new CacheWriter.Task() {
+				private long mFreed;
+
+				@Override
+				void write(SQLiteDatabase database) {
+					keys.clear();
+					mFreed = 0;
+
+					List<String> bodies = new ArrayList<String>();
+					Cursor cursor = mDatabase.query(TABLE_CACHE, new String[] { COL_KEY, COL_BODY }, where, args, null, null, null);
+					try {
+						while (cursor.moveToNext()) {
+							keys.add(cursor.getString(0));
+							bodies.add(cursor.getString(1));
+						}
+					} finally {
+						cursor.close();
+					}
+
+					if (keys.isEmpty()) {
+						return;
+					}
+
+					mDatabase.delete(TABLE_CACHE, where, args);
+					for (String body : bodies) {
+						mFreed += release(body);
+					}
+				}
+
+				@Override
+				void committed() {
+					synchronized (Database.this) {
+						mCacheSize -= mFreed;
+					}
+					for (String key : keys) {
+						MEMORY_CACHE.remove(key);
+					}
+				}
+			};
+
+			try {
+				mWriter.submit(task);
 			} catch (Throwable t) {
 				t.printStackTrace();
+				return 0;
+			}
+			return keys.size();
+		}
+
+		/**
+		 * Mark response of key as just fetched with a new expiry, without touching
+		 * the body. Returns false if no record exists for key.
+		 * 
+		 * @param key
+		 * @param expires
+		 * @return
+		 */
+		public boolean refresh(final String key, final long expires) {
+			if (!contains(key)) {
+				return false;
+			}
+
+			try {
+				mWriter.submit(new CacheWriter.Task() {
+					@Override
+					boolean isBatched() {
+						return true;
+					}
+
+					@Override
+					void write(SQLiteDatabase database) {
+						mRefreshStatement.bindLong(1, System.currentTimeMillis());
+						mRefreshStatement.bindLong(2, expires);
+						mRefreshStatement.bindString(3, key);
+						mRefreshStatement.execute();
+					}
+				});
+				return true;
+			} catch (Throwable t) {
+				t.printStackTrace();
+				return false;
+			}
+		}
+
+		/**
+		 * ETag and Last-Modified validators stored with response of key for
+		 * conditional requests, either may be null. Returns null if no record exists
+		 * for key.
+		 * 
+		 * @param key
+		 * @return
+		 */
+		public String[] getValidators(String key) {
+			Cursor cursor = mDatabase.query(TABLE_CACHE, new String[] { COL_ETAG, COL_LAST_MODIFIED }, COL_KEY + "=?", new String[] { key }, null, null, null);
+			try {
+				return cursor.moveToFirst() ? new String[] { cursor.getString(0), cursor.getString(1) } : null;
+			} finally {
+				cursor.close();
+			}
+		}
+
+		/**
+		 * Charset response bytes of key were received in, or null if they are in
+		 * the default charset or there is no record.
+		 * 
+		 * @param key
+		 * @return
+		 */
+		public String getCharSet(String key) {
+			Cursor cursor = mDatabase.query(TABLE_CACHE, new String[] { COL_CHARSET }, COL_KEY + "=?", new String[] { key }, null, null, null);
+			try {
+				return cursor.moveToFirst() ? cursor.getString(0) : null;
+			} finally {
+				cursor.close();
 			}
-			
 		}
 
 		public boolean contains(String key) {
-			return contains(key, null, null);
+			synchronized (mContainsStatement) {
+				mContainsStatement.bindString(1, key);
+				return mContainsStatement.simpleQueryForLong() != 0;
+			}
+		}
+
+		/**
+		 * Queue move of record stored under the legacy key of request to key, if
+		 * key doesn't already have a record. Doesn't wait for the writer, the
+		 * service thread checks the cache again before making the request, by
+		 * which time the move has normally been made. Cheap no-op once no legacy
+		 * records remain.
+		 * 
+		 * @param request
+		 * @param key
+		 */
+		public void migrateKey(WebRequest request, final String key) {
+			if (!mHasLegacyKeys || contains(key)) {
+				return;
+			}
+
+			final String legacyKey = request.getLegacyKey();
+			final ContentValues values = new ContentValues();
+			values.put(COL_KEY, key);
+
+			mWriter.execute(new CacheWriter.Task() {
+				@Override
+				void write(SQLiteDatabase database) {
+					// stored under key while this was queued, leave the legacy record
+					// to be pruned
+					if (contains(key) || database.update(TABLE_CACHE, values, COL_KEY + "=?", new String[] { legacyKey }) == 0) {
+						return;
+					}
+
+					MEMORY_CACHE.remove(legacyKey);
+					WebService.log(Log.DEBUG, "migrated legacy key", legacyKey, "to", key);
+
+					SQLiteStatement legacy = database.compileStatement("select count(*) from cache where length(_ID) <= " + RequestKey.LEGACY_KEY_MAX_LENGTH);
+					mHasLegacyKeys = legacy.simpleQueryForLong() != 0;
+					legacy.close();
+				}
+			});
 		}
 
 		/**
@@ -230,28 +1507,77 @@ public class WebContentProvider extends ContentProvider {
 		 * @return
 		 */
 		public boolean contains(String key, Integer timeValue, Integer timeType) {
-			String selectValues = "count(*)";
-			if (timeValue != null)
-				selectValues = "(datetime(timestamp, '+" + timeValue + " " + getTimeType(timeType) + "') > '" + getTimeStamp() + "')";
+			if (timeValue == null) {
+				return contains(key);
+			}
+			return contains(key, WebService.getTimeMillis(timeValue, timeType));
+		}
 
-			String query = "select " + selectValues + " from " + TABLE_CACHE + " where _ID=?";
-			Cursor cursor = mDatabase.rawQuery(query, new String[] { key });
+		/**
+		 * Check for record with PK key still valid for the cache policy of request.
+		 * Under WebService.CACHE_POLICY_SERVER the expiry stored with the record is
+		 * used, otherwise the request's cache time.
+		 * 
+		 * @param key
+		 * @param request
+		 * @param grace
+		 *          millis past expiry a record is still considered valid
+		 * @return
+		 */
+		public boolean contains(String key, WebRequest request, long grace) {
+			if (request.mCachePolicy == WebService.CACHE_POLICY_SERVER) {
+				synchronized (mUnexpiredStatement) {
+					try {
+						mUnexpiredStatement.bindString(1, key);
+						mUnexpiredStatement.bindLong(2, System.currentTimeMillis() - grace);
+						return mUnexpiredStatement.simpleQueryForLong() == 1;
+					} catch (SQLiteDiskIOException e) {
+						e.printStackTrace();
+						return false;
+					}
+				}
+			}
+			if (request.mCacheTimeValue == null) {
+				return contains(key);
+			}
+			return contains(key, WebService.getTimeMillis(request.mCacheTimeValue, request.mCacheTimeType) + grace);
+		}
 
-			try {
-				if (!cursor.moveToFirst()) {
-					cursor.close();
+		/**
+		 * Check for record with PK key written less than maxAge millis ago.
+		 * 
+		 * @param key
+		 * @param maxAge
+		 * @return
+		 */
+		public boolean contains(String key, long maxAge) {
+			long since = System.currentTimeMillis() - maxAge;
+
+			synchronized (mFreshStatement) {
+				try {
+					mFreshStatement.bindString(1, key);
+					mFreshStatement.bindLong(2, since);
+					return mFreshStatement.simpleQueryForLong() == 1;
+				} catch (SQLiteDiskIOException e) {
+					e.printStackTrace();
 					return false;
 				}
-			} catch (SQLiteDiskIOException e) {
-				e.printStackTrace();
-				return false;
 			}
-			
-
-			int i = cursor.getInt(0);
-			cursor.close();
+		}
 
-			return i == 1 ? true : false;
+		/**
+		 * Hash of response body of key, or null if no record exists for key.
+		 * 
+		 * @param key
+		 * @return
+		 */
+		public String getHash(String key) {
+			Cursor cursor = mDatabase.query(TABLE_CACHE, new String[] { COL_BODY }, COL_KEY + "=?", new String[] { key }, null, null, null);
+			try {
+				return cursor.moveToFirst() ? cursor.getString(0) : null;
+			} finally {
+				cursor.close();
+			}
 		}
 
 		/**
@@ -263,52 +1589,128 @@ public class WebContentProvider extends ContentProvider {
 		public Bundle get(String key) {
 
 			Bundle b = new Bundle();
-			Cursor cursor = mDatabase.query(TABLE_CACHE, new String[] { COL_RESPONSE, COL_TYPE }, COL_KEY + "=?", new String[] { key }, null, null, null);
+			Cursor cursor = mDatabase.query(VIEW_ENTRY, new String[] { COL_RESPONSE, COL_TYPE, COL_CODEC }, COL_KEY + "=?", new String[] { key }, null, null, null);
 			if (!cursor.moveToFirst()) {
 				cursor.close();
 				return null;
 			}
 
-			b.putByteArray("responseBytes", cursor.getBlob(0));
+			try {
+				b.putByteArray("responseBytes", Codec.decode(cursor.getBlob(0), cursor.getInt(2)));
+			} catch (IOException e) {
+				e.printStackTrace();
+				cursor.close();
+				return null;
+			}
 			b.putInt("contentType", cursor.getInt(1));
 			cursor.close();
+			touch(key);
 			return b;
 		}
 
-		public Cursor getCursor(String key) {
-			// prune();
-			return mDatabase.query(TABLE_CACHE, new String[] { COL_RESPONSE, COL_TYPE, COL_DATA, COL_MIME_TYPE }, COL_KEY + "=?", new String[] { key }, null, null, null);
+		/**
+		 * Cursor of side file path, blob length, body hash and codec of key for
+		 * opening a stream without copying the response.
+		 * 
+		 * @param key
+		 * @return
+		 */
+		public Cursor getStreamCursor(String key) {
+			touch(key);
+			return mDatabase.rawQuery("select _data, length(response), body, codec from entry where _ID=?", new String[] { key });
 		}
 
 		/**
-		 * coerce type to string for use in sql
+		 * Read len bytes of blob response body from offset. Returns null if the
+		 * body no longer exists.
 		 * 
-		 * @param type
+		 * @param hash
+		 * @param offset
+		 * @param len
 		 * @return
 		 */
-		private String getTimeType(int type) {
-			switch (type) {
-			case WebService.TIME_SECOND:
-				return "seconds";
-			case WebService.TIME_MINUTE:
-				return "minutes";
-			case WebService.TIME_HOUR:
-				return "hours";
-			case WebService.TIME_DAY:
-				return "days";
-			case WebService.TIME_MONTH:
-				return "months";
-			case WebService.TIME_YEAR:
-				return "years";
+		byte[] getBlobChunk(String hash, long offset, int len) {
+			Cursor cursor = getChunkCursor(hash, offset, len);
+			try {
+				return cursor.moveToFirst() ? cursor.getBlob(0) : null;
+			} finally {
+				cursor.close();
 			}
+		}
 
-			return null;
+		/**
+		 * Cursor of the response column holding len bytes of blob response body
+		 * from offset, empty if the body no longer exists.
+		 * 
+		 * @param hash
+		 * @param offset
+		 * @param len
+		 * @return
+		 */
+		Cursor getChunkCursor(String hash, long offset, int len) {
+			// substr is 1-indexed
+			String[] args = new String[] { String.valueOf(offset + 1), String.valueOf(len), hash };
+			return mDatabase.rawQuery("select substr(response, ?, ?) as response from body where hash=?", args);
+		}
+
+		/**
+		 * Cursor of response, type, side file path, mime type, codec, blob length
+		 * and body hash of key. Responses stored with a codec other than
+		 * Codec.NONE must be decoded. Blobs over BlobInputStream.CHUNK_SIZE are left
+		 * out of the response column so they don't have to fit a CursorWindow, and
+		 * are read with a BlobInputStream on the body hash instead, or from another
+		 * process in chunks with a PATH_CHUNK query of the provider.
+		 * 
+		 * @param key
+		 * @return
+		 */
+		public Cursor getCursor(String key) {
+			touch(key);
+			return mDatabase.query(VIEW_ENTRY, getCursorColumns(false), COL_KEY + "=?", new String[] { key }, null, null, null);
 		}
 
-		private String getTimeStamp() {
-			SimpleDateFormat dateFormat = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss", Locale.getDefault());
-			Date date = new Date();
-			return dateFormat.format(date);
+		private static String[] getCursorColumns(boolean withKey) {
+			String response = "case when length(" + COL_RESPONSE + ") <= " + BlobInputStream.CHUNK_SIZE + " then " + COL_RESPONSE + " end as " + COL_RESPONSE;
+			String length = "length(" + COL_RESPONSE + ") as length";
+			if (withKey) {
+				return new String[] { response, COL_TYPE, COL_DATA, COL_MIME_TYPE, COL_CODEC, length, COL_BODY, COL_KEY };
+			}
+			return new String[] { response, COL_TYPE, COL_DATA, COL_MIME_TYPE, COL_CODEC, length, COL_BODY };
+		}
+
+		/**
+		 * Cursor over the records of keys with the columns of getCursor followed
+		 * by the key, in no particular order. Keys without a record are left out.
+		 * Keys are looked up with one IN query per MAX_QUERY_KEYS.
+		 * 
+		 * @param keys
+		 * @return
+		 */
+		public Cursor getCursors(String[] keys) {
+			String[] columns = getCursorColumns(true);
+			Cursor[] cursors = new Cursor[(keys.length + MAX_QUERY_KEYS - 1) / MAX_QUERY_KEYS];
+
+			for (int i = 0; i < cursors.length; i++) {
+				int from = i * MAX_QUERY_KEYS;
+				String[] args = new String[Math.min(MAX_QUERY_KEYS, keys.length - from)];
+				System.arraycopy(keys, from, args, 0, args.length);
+
+				StringBuilder selection = new StringBuilder(COL_KEY).append(" in (?");
+				for (int j = 1; j < args.length; j++) {
+					selection.append(",?");
+				}
+				selection.append(")");
+
+				for (String key : args) {
+					touch(key);
+				}
+				cursors[i] = mDatabase.query(VIEW_ENTRY, columns, selection.toString(), args, null, null, null);
+			}
+
+			if (cursors.length == 0) {
+				return new MatrixCursor(columns, 0);
+			}
+			return cursors.length == 1 ? cursors[0] : new MergeCursor(cursors);
 		}
 	}
 }
@@ -20,6 +20,13 @@ public interface WebReceiver {
 	public static final String RESPONSE_CODE = "responseCode";
 	public static final String RESPONSE_MESSAGE = "responseMessage";
 	public static final String DEVELOPER_EXTRAS = "developerExtras";
+	// true if result was served from cache without a network call
+	public static final String FROM_CACHE = "fromCache";
+	// true if cached result has expired and is being refreshed in background
+	public static final String STALE = "stale";
+	// true on the second result of a background refresh that changed the
+	// response, see WebRequest.setNotifyOnRevalidate
+	public static final String CHANGED = "changed";
 
 	public void onReceiveResult(int resultCode, Bundle resultData);
 }
@@ -1,6 +1,8 @@
 package org.tsg.web;
 
 import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
 
 import android.content.Context;
 import android.os.Bundle;
@@ -21,6 +23,17 @@ public class WebRequest implements Parcelable {
 	Integer mCacheTimeType;
 	Bundle mDeveloperExtras;
 	String mFakeData;
+	Integer mStaleTimeValue;
+	Integer mStaleTimeType;
+	boolean mNotifyOnRevalidate;
+	int mCachePolicy;
+	Integer mMinCacheTimeValue;
+	Integer mMinCacheTimeType;
+	Integer mMaxCacheTimeValue;
+	Integer mMaxCacheTimeType;
+	ArrayList<String> mTags = new ArrayList<String>();
+	boolean mResumable;
+	int mSegments;
 
 	public WebRequest() {
 		this(null);
@@ -51,13 +64,24 @@ public class WebRequest implements Parcelable {
 	}
 
 	/**
-	 * Gets key based on values of mUrl, mParams, and mHeaders. This can be used
-	 * outside the scope of making a web service call to query the cache directly
-	 * for the last result if available.
+	 * Gets key based on values of mUrl, mMethod, mParams, mHeaders and mBody.
+	 * This can be used outside the scope of making a web service call to query
+	 * the cache directly for the last result if available. Params and headers
+	 * are ordered by name so equal bundles produce equal keys.
 	 * 
 	 * @return
 	 */
 	public String getKey() {
+		return RequestKey.build(this);
+	}
+
+	/**
+	 * Key format used before getKey was collision resistant, only kept so
+	 * responses cached under it can be found and migrated.
+	 * 
+	 * @return
+	 */
+	String getLegacyKey() {
 		return String.valueOf((mUrl + String.valueOf(mParams) + String.valueOf(mHeaders) + String.valueOf(mBody)).hashCode());
 	}
 
@@ -217,6 +241,114 @@ public class WebRequest implements Parcelable {
 		mCacheTimeType = cacheTimeType;
 	}
 
+	/**
+	 * WebService.CACHE_POLICY_REQUEST, the default, keeps responses for the
+	 * cache time set on this request. WebService.CACHE_POLICY_SERVER keeps them
+	 * for as long as the response's Cache-Control, Expires and Age headers
+	 * allow, using the cache time only when the response declares no lifetime.
+	 * 
+	 * @param cachePolicy
+	 */
+	public void setCachePolicy(int cachePolicy) {
+		mCachePolicy = cachePolicy;
+	}
+
+	/**
+	 * Lower bound on the lifetime of responses under
+	 * WebService.CACHE_POLICY_SERVER. Pass null to disable, the default.
+	 * 
+	 * @param minCacheTimeValue
+	 * @param minCacheTimeType
+	 *          SERVICE.TIME_[TYPE] for SECOND, MINUTE, HOUR, etc
+	 */
+	public void setMinCacheTime(Integer minCacheTimeValue, Integer minCacheTimeType) {
+		mMinCacheTimeValue = minCacheTimeValue;
+		mMinCacheTimeType = minCacheTimeType;
+	}
+
+	/**
+	 * Upper bound on the lifetime of responses under
+	 * WebService.CACHE_POLICY_SERVER. Pass null to disable, the default.
+	 * 
+	 * @param maxCacheTimeValue
+	 * @param maxCacheTimeType
+	 *          SERVICE.TIME_[TYPE] for SECOND, MINUTE, HOUR, etc
+	 */
+	public void setMaxCacheTime(Integer maxCacheTimeValue, Integer maxCacheTimeType) {
+		mMaxCacheTimeValue = maxCacheTimeValue;
+		mMaxCacheTimeType = maxCacheTimeType;
+	}
+
+	/**
+	 * Tag the cached response of this request so it can be deleted along with
+	 * others of the same tag by WebService.invalidateTag. Tags can't contain
+	 * newlines.
+	 * 
+	 * @param tag
+	 */
+	public void addTag(String tag) {
+		if (!mTags.contains(tag)) {
+			mTags.add(tag);
+		}
+	}
+
+	public List<String> getTags() {
+		return mTags;
+	}
+
+	/**
+	 * Once the cache time has passed, keep serving the cached response for this
+	 * much longer while it is refreshed in the background. Within this window
+	 * receivers get STATUS_FINISHED immediately with WebReceiver.FROM_CACHE and
+	 * WebReceiver.STALE set. Pass null to disable, the default.
+	 * 
+	 * @param staleTimeValue
+	 * @param staleTimeType
+	 *          SERVICE.TIME_[TYPE] for SECOND, MINUTE, HOUR, etc
+	 */
+	public void setStaleWhileRevalidate(Integer staleTimeValue, Integer staleTimeType) {
+		mStaleTimeValue = staleTimeValue;
+		mStaleTimeType = staleTimeType;
+	}
+
+	/**
+	 * When a stale response is served and refreshed in the background, notify
+	 * receivers a second time with STATUS_FINISHED and WebReceiver.CHANGED set if
+	 * the refreshed response differs from the one served.
+	 * 
+	 * @param notifyOnRevalidate
+	 */
+	public void setNotifyOnRevalidate(boolean notifyOnRevalidate) {
+		mNotifyOnRevalidate = notifyOnRevalidate;
+	}
+
+	/**
+	 * Keep a failed download of a GET request so a retry fetches only the rest
+	 * with a Range request, provided the response had a strong ETag or a
+	 * Last-Modified date to check it is unchanged with. The response is always
+	 * stored as a side file and requested without content encoding. While a
+	 * call for the same key is already downloading, such as a prefetch, another
+	 * is made as a plain request that is not kept on failure.
+	 * 
+	 * @param resumable
+	 */
+	public void setResumable(boolean resumable) {
+		mResumable = resumable;
+	}
+
+	/**
+	 * Split a large GET response into this many byte ranges fetched at the same
+	 * time, for servers that support ranges. Ranges are at least 256 kilobytes
+	 * and are fetched by at most WebService.setSegmentThreads threads besides
+	 * the request's own. Ignored for resumable requests. Default is 1, a single
+	 * connection.
+	 * 
+	 * @param segments
+	 */
+	public void setSegments(int segments) {
+		mSegments = segments;
+	}
+
 	/**
 	 * Bundle containing extra data that will be passed back into resultData in
 	 * Receiver.onReceiveResult method. Keep the size of this minimal to avoid
@@ -309,13 +441,36 @@ public class WebRequest implements Parcelable {
 		dest.writeInt(mCacheTimeType);
 		dest.writeBundle(mDeveloperExtras);
 		dest.writeString(mFakeData);
+		dest.writeValue(mStaleTimeValue);
+		dest.writeValue(mStaleTimeType);
+		dest.writeInt(mNotifyOnRevalidate ? 1 : 0);
+		dest.writeInt(mCachePolicy);
+		dest.writeValue(mMinCacheTimeValue);
+		dest.writeValue(mMinCacheTimeType);
+		dest.writeValue(mMaxCacheTimeValue);
+		dest.writeValue(mMaxCacheTimeType);
+		dest.writeStringList(mTags);
+		dest.writeInt(mResumable ? 1 : 0);
+		dest.writeInt(mSegments);
 	}
 
 	public static final Parcelable.Creator<WebRequest> CREATOR = new Parcelable.Creator<WebRequest>() {
 		@Override
 		public WebRequest createFromParcel(Parcel source) {
-			return new WebRequest(source.readString(), source.readString(), (File) source.readSerializable(), source.readBundle(), source.readBundle(), source.readInt(),
-					source.readInt(), source.readInt(), source.readBundle(), source.readString());
+			WebRequest request = new WebRequest(source.readString(), source.readString(), (File) source.readSerializable(), source.readBundle(), source.readBundle(),
+					source.readInt(), source.readInt(), source.readInt(), source.readBundle(), source.readString());
+			request.mStaleTimeValue = (Integer) source.readValue(null);
+			request.mStaleTimeType = (Integer) source.readValue(null);
+			request.mNotifyOnRevalidate = source.readInt() != 0;
+			request.mCachePolicy = source.readInt();
+			request.mMinCacheTimeValue = (Integer) source.readValue(null);
+			request.mMinCacheTimeType = (Integer) source.readValue(null);
+			request.mMaxCacheTimeValue = (Integer) source.readValue(null);
+			request.mMaxCacheTimeType = (Integer) source.readValue(null);
+			request.mTags = source.createStringArrayList();
+			request.mResumable = source.readInt() != 0;
+			request.mSegments = source.readInt();
+			return request;
 		}
 
 		@Override
@@ -4,6 +4,7 @@ import android.content.Context;
 import android.os.Bundle;
 import java.io.InputStream;
 import java.io.Serializable;
+import java.nio.ByteBuffer;
 
 public class WebResponse {
 
@@ -85,10 +86,26 @@ public class WebResponse {
 		return WebService.getResponseBytes(mContext, getRequestKey());
 	}
 
+	/**
+	 * Stream of response read incrementally from the cache, see
+	 * WebService.getResponseStream. Caller must close.
+	 * 
+	 * @return
+	 */
 	public InputStream getStream() {
 		return WebService.getResponseStream(mContext, getRequestKey());
 	}
 
+	/**
+	 * Read-only buffer of response, memory mapped when stored to file. See
+	 * WebService.getResponseBuffer.
+	 * 
+	 * @return
+	 */
+	public ByteBuffer getBuffer() {
+		return WebService.getResponseBuffer(mContext, getRequestKey());
+	}
+
 	public Exception getException() {
 		return (Exception) mResultData.getSerializable(WebReceiver.RESPONSE_EXCEPTION);
 	}
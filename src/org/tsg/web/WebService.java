@@ -2,18 +2,27 @@ package org.tsg.web;
 
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
 import java.util.UUID;
+import java.util.concurrent.CancellationException;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import android.app.Service;
 import android.content.ContentValues;
@@ -24,6 +33,8 @@ import android.net.Uri;
 import android.os.Bundle;
 import android.os.Handler;
 import android.os.IBinder;
+import android.os.ParcelFileDescriptor;
+import android.os.Process;
 import android.os.ResultReceiver;
 import android.util.Log;
 
@@ -43,6 +54,8 @@ public class WebService extends Service {
 
 	//
 	private static Class<WebClient> WebClientClass = WebClient.class;
+	// HTTP backend shared by all clients, ApacheTransport when null
+	private static Transport TRANSPORT;
 
 	//
 	public static final int METHOD_GET = 0;
@@ -61,16 +74,45 @@ public class WebService extends Service {
 	public static final int TIME_MONTH = 4;
 	public static final int TIME_YEAR = 5;
 
+	// cache lifetime from WebRequest.setCacheTime
+	public static final int CACHE_POLICY_REQUEST = 0;
+	// cache lifetime from response Cache-Control, Expires and Age headers
+	public static final int CACHE_POLICY_SERVER = 1;
+
 	//
 	static final String HEADER_ACCEPT_ENCODING = "Accept-Encoding";
+	static final String HEADER_CACHE_CONTROL = "Cache-Control";
+	static final String HEADER_EXPIRES = "Expires";
+	static final String HEADER_AGE = "Age";
+	static final String HEADER_DATE = "Date";
+	static final String HEADER_ETAG = "ETag";
+	static final String HEADER_LAST_MODIFIED = "Last-Modified";
+	static final String HEADER_IF_NONE_MATCH = "If-None-Match";
+	static final String HEADER_IF_MODIFIED_SINCE = "If-Modified-Since";
+	static final String HEADER_RANGE = "Range";
+	static final String HEADER_IF_RANGE = "If-Range";
+	static final String HEADER_CONTENT_RANGE = "Content-Range";
 	static final String ENCODING_GZIP = "gzip";
 
 	//
 	private static int POOL_SIZE = 3;
+	// threads shared by segmented downloads for ranges beyond their first
+	private static int SEGMENT_THREADS = 2;
+
+	// millis failures are remembered for, 0 disables negative caching
+	private static long NEGATIVE_CACHE_TIME = 0;
+	private static final NegativeCache NEGATIVE_CACHE = new NegativeCache();
+
+	// keys whose partial download is in use by a call, only one call may
+	// resume or write a partial file at a time
+	private static final ConcurrentHashMap<String, Boolean> PARTIAL_KEYS = new ConcurrentHashMap<String, Boolean>();
 
 	// managed during service life cycle
 	// private WebContentProvider.Database mDatabase;
 	private ExecutorService mPool;
+	private ExecutorService mPrefetchPool;
+	// incremented to drop queued prefetches
+	private static final AtomicInteger PREFETCH_GENERATION = new AtomicInteger();
 	private static final List<Integer> mStartIds = new ArrayList<Integer>();
 	private static final Map<String, WebServiceResultReceiver> mResultReceivers = new ConcurrentHashMap<String, WebServiceResultReceiver>();
 
@@ -110,8 +152,70 @@ public class WebService extends Service {
 		LOGGING = true;
 	}
 
+	/**
+	 * Length of time in milliseconds for a WebService.TIME_[TYPE]. Months and
+	 * years are taken as 30 and 365 days.
+	 * 
+	 * @param value
+	 * @param type
+	 * @return
+	 */
+	static long getTimeMillis(int value, int type) {
+		switch (type) {
+		case TIME_SECOND:
+			return value * 1000L;
+		case TIME_MINUTE:
+			return value * 60000L;
+		case TIME_HOUR:
+			return value * 3600000L;
+		case TIME_DAY:
+			return value * 86400000L;
+		case TIME_MONTH:
+			return value * 30 * 86400000L;
+		case TIME_YEAR:
+			return value * 365 * 86400000L;
+		}
+
+		return 0;
+	}
+
+	/**
+	 * Epoch millis a response fetched now expires at. Under CACHE_POLICY_SERVER
+	 * the lifetime the response declared is used, falling back to the request's
+	 * cache time when it declared none, and bounded by the request's min and max
+	 * cache time. A response marked no-store always expires immediately.
+	 * 
+	 * @param request
+	 * @param client
+	 *          client of the response, or null if not fetched from the network
+	 * @return
+	 */
+	static long getExpires(WebRequest request, WebClient client) {
+		long now = System.currentTimeMillis();
+		long lifetime = getTimeMillis(request.mCacheTimeValue, request.mCacheTimeType);
+
+		if (request.mCachePolicy == CACHE_POLICY_SERVER) {
+			if (client != null && client.mResponseNoStore) {
+				return now;
+			}
+			if (client != null && client.mResponseLifetime != null) {
+				lifetime = client.mResponseLifetime;
+			}
+			if (request.mMinCacheTimeValue != null) {
+				lifetime = Math.max(lifetime, getTimeMillis(request.mMinCacheTimeValue, request.mMinCacheTimeType));
+			}
+			if (request.mMaxCacheTimeValue != null) {
+				lifetime = Math.min(lifetime, getTimeMillis(request.mMaxCacheTimeValue, request.mMaxCacheTimeType));
+			}
+		}
+
+		return now + lifetime;
+	}
+
 	/**
 	 * Set the number of executor threads available for handling queued requests.
+	 * The shared HTTP connection pool is sized from this when first used, so set
+	 * it before making requests.
 	 * 
 	 * @param size
 	 */
@@ -119,6 +223,26 @@ public class WebService extends Service {
 		POOL_SIZE = size;
 	}
 
+	static int getPoolSize() {
+		return POOL_SIZE;
+	}
+
+	/**
+	 * Set the number of threads shared by all segmented downloads for fetching
+	 * ranges, on top of the executor thread of each download, capping the
+	 * connections they take from other requests. Set it before making requests.
+	 * Default is 2.
+	 * 
+	 * @param threads
+	 */
+	public static void setSegmentThreads(int threads) {
+		SEGMENT_THREADS = Math.max(1, threads);
+	}
+
+	static int getSegmentThreads() {
+		return SEGMENT_THREADS;
+	}
+
 	/**
 	 * Set subclass of WebClient to be used for requests.
 	 * 
@@ -128,6 +252,22 @@ public class WebService extends Service {
 		WebClientClass = cls;
 	}
 
+	/**
+	 * Set HTTP backend used for requests, such as UrlConnectionTransport.
+	 * Default is ApacheTransport, which is required by WebClient subclasses
+	 * overriding the org.apache.http hooks such as setClientCookieStore.
+	 * 
+	 * @param transport
+	 *          null for the default
+	 */
+	public static void setTransport(Transport transport) {
+		TRANSPORT = transport;
+	}
+
+	static Transport getTransport() {
+		return TRANSPORT;
+	}
+
 	/**
 	 * Useful if requests are already cached and working off-line. Sets all
 	 * request cache lengths to 999 years, forcing a pull from cache db if
@@ -138,8 +278,9 @@ public class WebService extends Service {
 	}
 
 	/**
-	 * Set max size of data in cache db, auto pruning oldest requests first.
-	 * Default is 5000 kilobytes. TODO implement
+	 * Set max size of data in cache db, including responses stored to file,
+	 * auto pruning least recently used requests first. Default is 5000
+	 * kilobytes.
 	 * 
 	 * @param kilobytes
 	 */
@@ -148,13 +289,175 @@ public class WebService extends Service {
 	}
 
 	/**
-	 * Deletes the cache database, effectively clearing the cache.
+	 * Store compressible responses, such as text, json and xml, deflated in the
+	 * cache db. Responses are inflated when read. Images and responses stored to
+	 * file are never compressed.
+	 */
+	public static void enableCompression() {
+		WebContentProvider.COMPRESSION = true;
+	}
+
+	/**
+	 * Minimum size of response worth compressing when compression is enabled.
+	 * Default is 1024 bytes.
+	 * 
+	 * @param bytes
+	 */
+	public static void setCompressionThreshold(int bytes) {
+		WebContentProvider.COMPRESSION_THRESHOLD = bytes;
+	}
+
+	/**
+	 * Responses larger than this many bytes, and all images, are stored as files
+	 * beside the cache db rather than as blobs in it. Default is 100 kilobytes.
+	 * 
+	 * @param bytes
+	 */
+	public static void setFileThreshold(int bytes) {
+		WebContentProvider.FILE_THRESHOLD = bytes;
+	}
+
+	/**
+	 * Set max size of responses held in memory in front of the cache db. Default
+	 * is 1024 kilobytes.
+	 * 
+	 * @param kilobytes
+	 */
+	public static void setMemoryCacheSize(int kilobytes) {
+		WebContentProvider.MEMORY_CACHE.setMaxSize(kilobytes * 1024);
+	}
+
+	/**
+	 * Number of response reads served from memory, useful for sizing the memory
+	 * cache with setMemoryCacheSize.
+	 * 
+	 * @return
+	 */
+	public static long getMemoryCacheHitCount() {
+		return WebContentProvider.MEMORY_CACHE.hitCount();
+	}
+
+	/**
+	 * Number of response reads that fell through to the cache db.
+	 * 
+	 * @return
+	 */
+	public static long getMemoryCacheMissCount() {
+		return WebContentProvider.MEMORY_CACHE.missCount();
+	}
+
+	/**
+	 * Remember failed requests, either error responses (status 400 and up) or
+	 * exceptions thrown making the call, for this long. Requests made in that
+	 * time get STATUS_ERROR with the original response code or exception and
+	 * WebReceiver.FROM_CACHE set, without a network call, unless an expired
+	 * response within WebRequest.setStaleWhileRevalidate can be served instead.
+	 * While enabled, error responses no longer replace a cached response. Pass
+	 * null to disable, the default.
+	 * 
+	 * @param value
+	 * @param type
+	 *          WebService.TIME_[TYPE] for SECOND, MINUTE, HOUR, etc
+	 */
+	public static void setNegativeCacheTime(Integer value, Integer type) {
+		NEGATIVE_CACHE_TIME = value == null ? 0 : getTimeMillis(value, type);
+		if (NEGATIVE_CACHE_TIME == 0) {
+			NEGATIVE_CACHE.clear();
+		}
+	}
+
+	/**
+	 * Cache statistics keyed by the names in CacheStats, counters since the
+	 * process started along with current entry count and sizes. The same values
+	 * are available to other processes by querying
+	 * content://&lt;authority&gt;/stats.
+	 * 
+	 * @param context
+	 * @return
+	 */
+	public static Bundle getCacheStats(Context context) {
+		return WebContentProvider.Database.getInstance(context.getApplicationContext()).getStats();
+	}
+
+	/**
+	 * Deletes all records of the cache database and cache files, effectively
+	 * clearing the cache. The database itself stays open, so requests in flight
+	 * meanwhile are stored in the emptied cache.
 	 * 
 	 * @param context
 	 */
 	public static void deleteDatabase(Context context) {
+		WebContentProvider.Database.getInstance(context.getApplicationContext()).clear();
+		NEGATIVE_CACHE.clear();
+	}
+
+	/**
+	 * Delete the cached response of key.
+	 * 
+	 * @param context
+	 * @param responseKey
+	 * @return number of responses deleted
+	 */
+	public static int invalidate(Context context, String responseKey) {
+		context = context.getApplicationContext();
+		Uri uri = WebContentProvider.getDefaultAuthority(context).buildUpon().appendPath(responseKey).build();
+		return context.getContentResolver().delete(uri, null, null);
+	}
+
+	/**
+	 * Delete cached responses of all requests whose url starts with prefix, such
+	 * as every page of a list endpoint after an edit.
+	 * 
+	 * @param context
+	 * @param prefix
+	 * @return number of responses deleted
+	 */
+	public static int invalidateUrlPrefix(Context context, String prefix) {
 		context = context.getApplicationContext();
-		context.deleteDatabase("serviceResponseCache");
+		Uri uri = WebContentProvider.getDefaultAuthority(context).buildUpon().appendPath(WebContentProvider.PATH_URL).appendPath(prefix).build();
+		return context.getContentResolver().delete(uri, null, null);
+	}
+
+	/**
+	 * Delete cached responses of all requests tagged with tag.
+	 * 
+	 * @param context
+	 * @param tag
+	 * @return number of responses deleted
+	 * @see WebRequest#addTag(String)
+	 */
+	public static int invalidateTag(Context context, String tag) {
+		context = context.getApplicationContext();
+		Uri uri = WebContentProvider.getDefaultAuthority(context).buildUpon().appendPath(WebContentProvider.PATH_TAG).appendPath(tag).build();
+		return context.getContentResolver().delete(uri, null, null);
+	}
+
+	/**
+	 * Url and tags of request stored with its response for invalidation.
+	 * 
+	 * @param values
+	 * @param request
+	 */
+	private static void putRecordValues(ContentValues values, WebRequest request) {
+		values.put("url", request.mUrl);
+		if (!request.mTags.isEmpty()) {
+			StringBuilder tags = new StringBuilder();
+			for (String tag : request.mTags) {
+				tags.append(tag).append('\n');
+			}
+			values.put("tags", tags.toString());
+		}
+	}
+
+	/**
+	 * Queue compaction of the cache in the background, removing orphaned cache
+	 * files and returning free space of the cache database to the file system.
+	 * This runs once whenever the cache database is opened.
+	 * 
+	 * @param context
+	 */
+	public static void compactCache(Context context) {
+		WebContentProvider.Database.getInstance(context.getApplicationContext()).compact();
 	}
 
 	/**
@@ -204,26 +507,39 @@ public class WebService extends Service {
 				return;
 			}
 
+			client.mCacheDir = WebContentProvider.getCacheDir(WebService.this);
+
 			String uuid = mIntent.getStringExtra("uuid");
 			String cacheKey = mIntent.getStringExtra("cacheKey");
 
+			// a prefetch or revalidation of the same key may be running, which then
+			// owns the partial download and this call starts from scratch
+			if (request.mResumable && request.mMethod == METHOD_GET && PARTIAL_KEYS.putIfAbsent(cacheKey, Boolean.TRUE) == null) {
+				client.mPartialFile = new File(client.mCacheDir, cacheKey + WebContentProvider.PARTIAL_SUFFIX);
+			}
+			boolean revalidate = mIntent.getBooleanExtra("revalidate", false);
+			boolean prefetch = mIntent.getBooleanExtra("prefetch", false);
+
 			if (LONG_CACHE) {
 				request.mCacheTimeValue = 999;
 				request.mCacheTimeType = TIME_YEAR;
+				request.mCachePolicy = CACHE_POLICY_REQUEST;
 			}
 
 			try {
 
 				Uri uri = WebContentProvider.getDefaultAuthority(getApplicationContext()).buildUpon().appendPath(cacheKey).build();
+				WebContentProvider.Database database = WebContentProvider.Database.getInstance(getApplicationContext());
 
-				boolean fromCache = false;
-				Cursor c = getApplicationContext().getContentResolver().query(uri, null, null, null, null);
-				if (c.getCount() != 0) {
-					fromCache = true;
-				}
-				c.close();
+				// may have been fetched while this request was queued
+				boolean fromCache = database.contains(cacheKey, request, 0);
+				int status = WebReceiver.STATUS_FINISHED;
 
-				if (request.mFakeData != null) {
+				if (prefetch && mIntent.getIntExtra("generation", 0) != PREFETCH_GENERATION.get()) {
+					log(Log.DEBUG, "Prefetch cancelled");
+					bundle.putSerializable(WebReceiver.RESPONSE_EXCEPTION, new CancellationException());
+					status = WebReceiver.STATUS_ERROR;
+				} else if (request.mFakeData != null) {
 					log(Log.DEBUG, "Handling FakeData");
 					// mDatabase.put(cacheKey, uuid, request.getContentType(),
 					// request.mFakeData.getBytes(), null);
@@ -232,43 +548,112 @@ public class WebService extends Service {
 					values.put("type", request.getContentType());
 					values.put("response", request.mFakeData.getBytes());
 					values.put("contentType", "");
+					values.put("expires", getExpires(request, null));
+					putRecordValues(values, request);
 					getApplicationContext().getContentResolver().insert(uri, values);
 				} else if (fromCache) {
 					log(Log.DEBUG, "Returning cached data");
-					bundle.putBoolean("fromCache", true);
+					CacheStats.sHits.incrementAndGet();
+					bundle.putBoolean(WebReceiver.FROM_CACHE, true);
+				} else if (NEGATIVE_CACHE_TIME > 0 && NEGATIVE_CACHE.get(cacheKey, bundle)) {
+					log(Log.DEBUG, "Returning cached failure");
+					CacheStats.sNegativeHits.incrementAndGet();
+					bundle.putBoolean(WebReceiver.FROM_CACHE, true);
+					status = WebReceiver.STATUS_ERROR;
 				} else {
 					// only send WebReceiver.STATUS_RUNNING if making an actual service
-					// call
+					// call, and not for background refreshes of a stale response
+					// receivers already have
 					log(Log.DEBUG, "Preparing Request");
 					mIntent.putExtra("status", WebReceiver.STATUS_RUNNING);
-					bundle.putString(WebReceiver.REQUEST_KEY, cacheKey);
-					receiver.send(WebReceiver.STATUS_RUNNING, bundle);
-					bundle = new Bundle();
-					bundle.putBundle(WebReceiver.DEVELOPER_EXTRAS, request.mDeveloperExtras);
+					if (!revalidate) {
+						bundle.putString(WebReceiver.REQUEST_KEY, cacheKey);
+						receiver.send(WebReceiver.STATUS_RUNNING, bundle);
+						bundle = new Bundle();
+						bundle.putBundle(WebReceiver.DEVELOPER_EXTRAS, request.mDeveloperExtras);
+					}
+					String previousHash = revalidate ? database.getHash(cacheKey) : null;
+
+					// an expired response is revalidated with a conditional request
+					String[] validators = database.getValidators(cacheKey);
+					if (validators != null) {
+						client.mIfNoneMatch = validators[0];
+						client.mIfModifiedSince = validators[1];
+					}
+
 					//
 					log(Log.DEBUG, "Calling Request");
+					CacheStats.sMisses.incrementAndGet();
 					client.call();
 
-					ContentValues values = new ContentValues();
-					values.put("uuid", uuid);
-					values.put("type", request.getContentType());
-					values.put("response", client.mResponseBytes);
-					values.put("contentType", client.mResponseContentType);
-					getApplicationContext().getContentResolver().insert(uri, values);
+					long expires = getExpires(request, client);
+
+					if (cacheFailure(cacheKey, client)) {
+						status = WebReceiver.STATUS_ERROR;
+					} else if (client.isNotModified()) {
+						log(Log.DEBUG, "Response not modified");
+						CacheStats.sNotModified.incrementAndGet();
+						ContentValues values = new ContentValues();
+						values.put("expires", expires);
+						if (getApplicationContext().getContentResolver().update(uri, values, null, null) == 0) {
+							// cached response was removed in the meantime, fetch it again
+							client.mIfNoneMatch = null;
+							client.mIfModifiedSince = null;
+							client.call();
+
+							expires = getExpires(request, client);
+							if (cacheFailure(cacheKey, client)) {
+								status = WebReceiver.STATUS_ERROR;
+							}
+						}
+					}
+
+					if (status == WebReceiver.STATUS_FINISHED && !client.isNotModified()) {
+						ContentValues values = new ContentValues();
+						values.put("uuid", uuid);
+						values.put("type", request.getContentType());
+						values.put("contentType", client.mResponseContentType);
+						values.put("charset", client.mResponseCharSet);
+						values.put("expires", expires);
+						if (!client.mResponseNoStore) {
+							values.put("etag", client.mResponseETag);
+							values.put("lastModified", client.mResponseLastModified);
+						}
+						putRecordValues(values, request);
+						// not through the provider, which takes no files from callers
+						database.put(cacheKey, client.mResponseBytes, client.mResponseFile, client.mResponseHash, WebContentProvider.getRecord(values));
+					}
+
+					if (status == WebReceiver.STATUS_FINISHED) {
+						NEGATIVE_CACHE.remove(cacheKey);
+					}
 
 					bundle.putInt(WebReceiver.RESPONSE_CODE, client.mResponseCode);
 					bundle.putString(WebReceiver.RESPONSE_MESSAGE, client.mResponseMessage);
+
+					if (revalidate) {
+						String hash = database.getHash(cacheKey);
+						bundle.putBoolean(WebReceiver.CHANGED, hash == null || !hash.equals(previousHash));
+					}
 				}
 
 				log(Log.DEBUG, "Notifying Receivers");
 				bundle.putString(WebReceiver.REQUEST_KEY, cacheKey);
-				receiver.send(WebReceiver.STATUS_FINISHED, bundle);
-				mIntent.putExtra("status", WebReceiver.STATUS_FINISHED);
+				receiver.send(status, bundle);
+				mIntent.putExtra("status", status);
 			} catch (Exception e) {
 				log(Log.DEBUG, "Error Encountered");
+				CacheStats.sErrors.incrementAndGet();
+				if (NEGATIVE_CACHE_TIME > 0) {
+					NEGATIVE_CACHE.put(cacheKey, NEGATIVE_CACHE_TIME, null, null, e);
+				}
 				bundle.putSerializable(WebReceiver.RESPONSE_EXCEPTION, e);
 				receiver.send(WebReceiver.STATUS_ERROR, bundle);
 				mIntent.putExtra("status", WebReceiver.STATUS_ERROR);
+			} finally {
+				if (client.mPartialFile != null) {
+					PARTIAL_KEYS.remove(cacheKey);
+				}
 			}
 
 			synchronized (mStartIds) {
@@ -279,6 +664,28 @@ public class WebService extends Service {
 			}
 		}
 
+		/**
+		 * Remember an error response of client in the negative cache, if enabled,
+		 * instead of storing it over any cached response.
+		 * 
+		 * @param cacheKey
+		 * @param client
+		 * @return true if the response is a failure not to be stored
+		 */
+		private boolean cacheFailure(String cacheKey, WebClient client) {
+			if (NEGATIVE_CACHE_TIME <= 0 || client.mResponseCode < 400) {
+				return false;
+			}
+			// keep any cached response, remember the failure instead
+			log(Log.DEBUG, "Caching failure", client.mResponseCode);
+			NEGATIVE_CACHE.put(cacheKey, NEGATIVE_CACHE_TIME, client.mResponseCode, client.mResponseMessage, null);
+			CacheStats.sErrors.incrementAndGet();
+			if (client.mResponseFile != null) {
+				client.mResponseFile.delete();
+			}
+			return true;
+		}
+
 	}
 
 	/**
@@ -294,10 +701,32 @@ public class WebService extends Service {
 		private Bundle mLastResult;
 		private String mRequestKey;
 		private boolean mIsPending;
+		private boolean mIsRevalidation;
+		private boolean mIsPrefetch;
 
 		public WebServiceResultReceiver(Handler handler, String requestKey) {
+			this(handler, requestKey, false);
+		}
+
+		public WebServiceResultReceiver(Handler handler, String requestKey, boolean revalidation) {
+			this(handler, requestKey, revalidation, false);
+		}
+
+		/**
+		 * @param handler
+		 * @param requestKey
+		 * @param revalidation
+		 *          if true, receivers already have a stale response and are only
+		 *          notified when the refreshed response changed
+		 * @param prefetch
+		 *          if true, no receivers wait on the result and requests for the
+		 *          same key don't attach to it
+		 */
+		public WebServiceResultReceiver(Handler handler, String requestKey, boolean revalidation, boolean prefetch) {
 			super(handler);
 			mRequestKey = requestKey;
+			mIsRevalidation = revalidation;
+			mIsPrefetch = prefetch;
 
 			mLastResult = new Bundle();
 			mLastResult.putInt(KEY_RESULT_CODE, WebReceiver.STATUS_CREATED);
@@ -327,6 +756,14 @@ public class WebService extends Service {
 			return mRequestKey;
 		}
 
+		public boolean isRevalidation() {
+			return mIsRevalidation;
+		}
+
+		public boolean isPrefetch() {
+			return mIsPrefetch;
+		}
+
 		public synchronized List<WebReceiver> getReceivers() {
 			return mReceivers;
 		}
@@ -359,8 +796,14 @@ public class WebService extends Service {
 			mLastResult.putInt(KEY_RESULT_CODE, resultCode);
 			mLastResult.putBundle(KEY_RESULT_DATA, resultData);
 
+			// receivers of a revalidation already have a response, only a changed
+			// one is delivered and nothing is held pending for later receivers
+			if (mIsRevalidation && !(resultCode == WebReceiver.STATUS_FINISHED && resultData.getBoolean(WebReceiver.CHANGED))) {
+				return;
+			}
+
 			synchronized (mReceivers) {
-				if (!mIsPending && mReceivers.size() == 0) {
+				if (!mIsRevalidation && !mIsPrefetch && !mIsPending && mReceivers.size() == 0) {
 					mIsPending = true;
 				}
 				// mIsPending = (mReceivers.size() == 0);
@@ -453,17 +896,89 @@ public class WebService extends Service {
 		String uuid = UUID.randomUUID().toString();
 		String cacheKey = request.getKey();
 
+		WebContentProvider.Database database = WebContentProvider.Database.getInstance(context.getApplicationContext());
+		database.migrateKey(request, cacheKey);
+
 		// Check if cache is still valid to avoid queueing this request behind
 		// valid web requests
-		if (WebContentProvider.Database.getInstance(context.getApplicationContext()).contains(cacheKey, request.mCacheTimeValue, request.mCacheTimeType)) {
+		if (database.contains(cacheKey, request, 0)) {
 			Bundle bundle = new Bundle();
 			bundle.putString(WebReceiver.REQUEST_KEY, cacheKey);
 			bundle.putBundle(WebReceiver.DEVELOPER_EXTRAS, request.mDeveloperExtras);
-			bundle.putBoolean("fromCache", true);
+			bundle.putBoolean(WebReceiver.FROM_CACHE, true);
+			CacheStats.sHits.incrementAndGet();
 			receiver.onReceiveResult(WebReceiver.STATUS_FINISHED, bundle);
 			return cacheKey;
 		}
 
+		// Serve expired response within stale window and refresh in background,
+		// even after a recent failure; the refresh is then answered by the
+		// negative cache on the service thread without a network call
+		if (request.mStaleTimeValue != null) {
+			if (database.contains(cacheKey, request, getTimeMillis(request.mStaleTimeValue, request.mStaleTimeType))) {
+				Bundle bundle = new Bundle();
+				bundle.putString(WebReceiver.REQUEST_KEY, cacheKey);
+				bundle.putBundle(WebReceiver.DEVELOPER_EXTRAS, request.mDeveloperExtras);
+				bundle.putBoolean(WebReceiver.FROM_CACHE, true);
+				bundle.putBoolean(WebReceiver.STALE, true);
+				CacheStats.sStaleHits.incrementAndGet();
+				receiver.onReceiveResult(WebReceiver.STATUS_FINISHED, bundle);
+
+				WebServiceResultReceiver resultReceiver = getInFlight(cacheKey);
+				if (resultReceiver == null) {
+					resultReceiver = new WebServiceResultReceiver(handler == null ? new Handler() : handler, cacheKey, true);
+					if (request.mNotifyOnRevalidate) {
+						resultReceiver.addReceiver(receiver);
+					}
+					startService(context, resultReceiver, request, uuid, cacheKey, true);
+				} else if (request.mNotifyOnRevalidate && resultReceiver.isRevalidation()) {
+					// a plain request in flight would notify it again without CHANGED
+					resultReceiver.addReceiver(receiver);
+				}
+				return cacheKey;
+			}
+		}
+
+		// Answer recent failure without another network call, when there's no
+		// stale response to serve instead
+		if (NEGATIVE_CACHE_TIME > 0) {
+			Bundle bundle = new Bundle();
+			if (NEGATIVE_CACHE.get(cacheKey, bundle)) {
+				bundle.putString(WebReceiver.REQUEST_KEY, cacheKey);
+				bundle.putBundle(WebReceiver.DEVELOPER_EXTRAS, request.mDeveloperExtras);
+				bundle.putBoolean(WebReceiver.FROM_CACHE, true);
+				CacheStats.sNegativeHits.incrementAndGet();
+				receiver.onReceiveResult(WebReceiver.STATUS_ERROR, bundle);
+				return cacheKey;
+			}
+		}
+
+		// a prefetch of the same key may be queued behind others, don't wait on it
+		WebServiceResultReceiver inFlight = getInFlight(cacheKey);
+		if (inFlight != null && !inFlight.isRevalidation() && !inFlight.isPrefetch()) {
+			inFlight.addReceiver(receiver);
+			return cacheKey;
+		}
+
+		if (handler == null) {
+			handler = new Handler();
+		}
+
+		WebServiceResultReceiver resultReceiver = new WebServiceResultReceiver(handler, cacheKey);
+		resultReceiver.addReceiver(receiver);
+		startService(context, resultReceiver, request, uuid, cacheKey, false);
+
+		return cacheKey;
+	}
+
+	/**
+	 * Result receiver of request for key that hasn't finished yet, or is pending
+	 * delivery, if any.
+	 * 
+	 * @param cacheKey
+	 * @return
+	 */
+	private static WebServiceResultReceiver getInFlight(String cacheKey) {
 		for (Entry<String, WebServiceResultReceiver> entry : mResultReceivers.entrySet()) {
 
 			WebServiceResultReceiver resultReceiver = entry.getValue();
@@ -475,103 +990,405 @@ public class WebService extends Service {
 				// check necessary?
 				int statusExtra = resultReceiver.mLastResult.getInt(WebServiceResultReceiver.KEY_RESULT_CODE);
 				if (statusExtra == WebReceiver.STATUS_CREATED || statusExtra == WebReceiver.STATUS_RUNNING || resultReceiver.isPending()) {
-					resultReceiver.addReceiver(receiver);
-					return cacheKey;
+					return resultReceiver;
 				}
 			}
 		}
+		return null;
+	}
 
-		if (handler == null) {
-			handler = new Handler();
-		}
+	private static void startService(Context context, WebServiceResultReceiver resultReceiver, WebRequest request, String uuid, String cacheKey, boolean revalidate) {
+		startService(context, newServiceIntent(context, resultReceiver, request, uuid, cacheKey, revalidate), resultReceiver, cacheKey);
+	}
 
-		WebServiceResultReceiver resultReceiver = new WebServiceResultReceiver(handler, cacheKey);
-		resultReceiver.addReceiver(receiver);
+	private static void startService(Context context, Intent service, WebServiceResultReceiver resultReceiver, String cacheKey) {
+		mResultReceivers.put(cacheKey, resultReceiver);
+
+		context.getApplicationContext().startService(service);
+	}
 
+	private static Intent newServiceIntent(Context context, WebServiceResultReceiver resultReceiver, WebRequest request, String uuid, String cacheKey, boolean revalidate) {
 		Intent service = new Intent(Intent.ACTION_SYNC, null, context.getApplicationContext(), WebService.class);
 		service.putExtra("receiver", resultReceiver);
 		service.putExtra("request", request);
 		service.putExtra("uuid", uuid);
 		service.putExtra("cacheKey", cacheKey);
+		service.putExtra("revalidate", revalidate);
+		return service;
+	}
 
-		mResultReceivers.put(cacheKey, resultReceiver);
+	/**
+	 * Fill the cache with responses for requests likely to be made soon, such as
+	 * detail pages of visible list rows. Requests already fresh in the cache, in
+	 * flight or recently failed are skipped. Prefetches run one at a time on a
+	 * background priority thread separate from the request pool, so they never
+	 * hold up user facing requests, and freshness is checked again before each
+	 * one runs. A request made for a key being prefetched doesn't wait on it.
+	 * 
+	 * @param context
+	 * @param requests
+	 * @see #cancelPrefetches()
+	 */
+	public static void prefetch(Context context, List<WebRequest> requests) {
+		context = context.getApplicationContext();
+		WebContentProvider.Database database = WebContentProvider.Database.getInstance(context);
+		int generation = PREFETCH_GENERATION.get();
 
-		context.getApplicationContext().startService(service);
+		for (WebRequest request : requests) {
+			String cacheKey = request.getKey();
+			database.migrateKey(request, cacheKey);
 
-		return cacheKey;
+			if (database.contains(cacheKey, request, 0) || getInFlight(cacheKey) != null) {
+				continue;
+			}
+			if (NEGATIVE_CACHE_TIME > 0 && NEGATIVE_CACHE.get(cacheKey, new Bundle())) {
+				continue;
+			}
+
+			WebServiceResultReceiver resultReceiver = new WebServiceResultReceiver(null, cacheKey, false, true);
+			Intent service = newServiceIntent(context, resultReceiver, request, UUID.randomUUID().toString(), cacheKey, false);
+			service.putExtra("prefetch", true);
+			service.putExtra("generation", generation);
+			startService(context, service, resultReceiver, cacheKey);
+		}
 	}
 
+	/**
+	 * Drop all queued prefetches, such as when the user navigates away from the
+	 * screen they were made for. A prefetch already running is left to finish.
+	 */
+	public static void cancelPrefetches() {
+		PREFETCH_GENERATION.incrementAndGet();
+	}
+
+	/**
+	 * Get response bytes for key, served from memory when recently stored or
+	 * read. The returned array is a copy and is safe to modify.
+	 * 
+	 * @param context
+	 * @param responseKey
+	 * @return
+	 */
 	public static byte[] getResponseBytes(Context context, String responseKey) {
-		context = context.getApplicationContext();
+		return readResponseBytes(context.getApplicationContext(), responseKey, true);
+	}
+
+	/**
+	 * Response bytes for key from memory, or read from the provider and kept in
+	 * memory. Looks in memory only once, so a miss is counted once.
+	 * 
+	 * @param context
+	 * @param responseKey
+	 * @param copy
+	 *          if false, bytes held in memory are returned as is and must not be
+	 *          modified
+	 * @return
+	 */
+	private static byte[] readResponseBytes(Context context, String responseKey, boolean copy) {
+		byte[] bytes = WebContentProvider.MEMORY_CACHE.get(responseKey);
+		if (bytes != null) {
+			return copy ? bytes.clone() : bytes;
+		}
+		return readStoredBytes(context, responseKey, WebContentProvider.MEMORY_CACHE.generation());
+	}
 
+	/**
+	 * Response bytes for key read from the provider after a memory miss, kept in
+	 * memory unless the memory cache changed since generation was taken.
+	 * 
+	 * @param context
+	 * @param responseKey
+	 * @param generation
+	 * @return
+	 */
+	private static byte[] readStoredBytes(Context context, String responseKey, long generation) {
 		byte[] bytes = null;
 		Uri uri = WebContentProvider.getDefaultAuthority(context).buildUpon().appendPath(responseKey).build();
 
 		Cursor c = context.getContentResolver().query(uri, null, null, null, null);
 		if (c.moveToFirst()) {
-			bytes = c.getBlob(0);
+			bytes = readBlob(context, c);
+
+			if (bytes == null && !c.isNull(2)) {
+				bytes = readFile(context, uri);
+			}
+
+			if (bytes != null) {
+				WebContentProvider.MEMORY_CACHE.fill(responseKey, bytes.clone(), generation);
+			}
+		}
+		c.close();
+		return bytes;
+	}
+
+	/**
+	 * Get response bytes for many keys at once, reading all those not held in
+	 * memory with a single provider query. Keys without a response are left out
+	 * of the returned map. The returned arrays are copies and are safe to modify.
+	 * 
+	 * @param context
+	 * @param responseKeys
+	 * @return
+	 */
+	public static Map<String, byte[]> getResponseBytes(Context context, String... responseKeys) {
+		context = context.getApplicationContext();
+
+		Map<String, byte[]> responses = new HashMap<String, byte[]>();
+		List<String> misses = new ArrayList<String>();
+
+		for (String responseKey : responseKeys) {
+			byte[] bytes = WebContentProvider.MEMORY_CACHE.get(responseKey);
+			if (bytes != null) {
+				responses.put(responseKey, bytes.clone());
+			} else {
+				misses.add(responseKey);
+			}
+		}
+
+		if (misses.isEmpty()) {
+			return responses;
+		}
+		long generation = WebContentProvider.MEMORY_CACHE.generation();
+
+		Uri authority = WebContentProvider.getDefaultAuthority(context);
+		Uri uri = authority.buildUpon().appendPath(WebContentProvider.PATH_KEYS).build();
+
+		Cursor c = context.getContentResolver().query(uri, null, null, misses.toArray(new String[misses.size()]), null);
+		try {
+			while (c.moveToNext()) {
+				String responseKey = c.getString(7);
+				byte[] bytes = readBlob(context, c);
+
+				if (bytes == null && !c.isNull(2)) {
+					bytes = readFile(context, authority.buildUpon().appendPath(responseKey).build());
+				}
+
+				if (bytes != null) {
+					WebContentProvider.MEMORY_CACHE.fill(responseKey, bytes.clone(), generation);
+					responses.put(responseKey, bytes);
+				}
+			}
+		} finally {
+			c.close();
+		}
+
+		return responses;
+	}
+
+	/**
+	 * Read and decode blob response of a WebContentProvider.Database.getCursor
+	 * row, paging through blobs left out of the row with a BlobInputStream.
+	 * 
+	 * @param context
+	 * @param c
+	 * @return null if the response isn't stored as a blob
+	 */
+	private static byte[] readBlob(Context context, Cursor c) {
+		int codec = c.getInt(4);
+		try {
+			if (!c.isNull(0)) {
+				return Codec.decode(c.getBlob(0), codec);
+			}
+			if (!c.isNull(2) || c.isNull(5)) {
+				return null;
+			}
+
+			long length = c.getLong(5);
+			WebContentProvider.Database database = WebContentProvider.Database.getInstance(context);
+			InputStream inputStream = Codec.decode(new BlobInputStream(database, c.getString(6), length), codec);
+			try {
+				if (codec != Codec.NONE) {
+					return readFully(inputStream);
+				}
+				// exact size is known, read straight into the result
+				byte[] bytes = new byte[(int) length];
+				int offset = 0;
+				int len;
+				while (offset < bytes.length && (len = inputStream.read(bytes, offset, bytes.length - offset)) != -1) {
+					offset += len;
+				}
+				return bytes;
+			} finally {
+				inputStream.close();
+			}
+		} catch (IOException e) {
+			e.printStackTrace();
+			return null;
+		}
+	}
+
+	private static byte[] readFully(InputStream inputStream) throws IOException {
+		ByteArrayOutputStream byteBuffer = new ByteArrayOutputStream();
+		byte[] buffer = new byte[8192];
+		int len = 0;
+		while ((len = inputStream.read(buffer)) != -1) {
+			byteBuffer.write(buffer, 0, len);
+		}
+		return byteBuffer.toByteArray();
+	}
 
-			if (bytes == null) {
-				InputStream inputStream = null;
+	/**
+	 * Read side file of response at uri through WebContentProvider.openFile.
+	 * 
+	 * @param context
+	 * @param uri
+	 * @return null if the file couldn't be read
+	 */
+	private static byte[] readFile(Context context, Uri uri) {
+		InputStream inputStream = null;
+		try {
+			inputStream = context.getContentResolver().openInputStream(uri);
+			return readFully(inputStream);
+		} catch (FileNotFoundException e) {
+			e.printStackTrace();
+		} catch (IOException e) {
+			e.printStackTrace();
+		} finally {
+			if (inputStream != null) {
 				try {
-					inputStream = context.getContentResolver().openInputStream(uri);
-					ByteArrayOutputStream byteBuffer = new ByteArrayOutputStream();
-					int bufferSize = 1024;
-					byte[] buffer = new byte[bufferSize];
-					int len = 0;
-					while ((len = inputStream.read(buffer)) != -1) {
-						byteBuffer.write(buffer, 0, len);
-					}
-					bytes = byteBuffer.toByteArray();
-				} catch (FileNotFoundException e) {
-					e.printStackTrace();
+					inputStream.close();
 				} catch (IOException e) {
 					e.printStackTrace();
 				}
 			}
 		}
-		c.close();
-		return bytes;
+		return null;
 	}
 
+	/**
+	 * Get stream of response for key without reading it fully into memory. Side
+	 * files are read through WebContentProvider.openFile and blobs are read from
+	 * the cache db in chunks. Returns null if there is no response for key.
+	 * 
+	 * @param context
+	 * @param responseKey
+	 * @return
+	 */
 	public static InputStream getResponseStream(Context context, String responseKey) {
-		/*
 		context = context.getApplicationContext();
 
+		byte[] bytes = WebContentProvider.MEMORY_CACHE.get(responseKey);
+		if (bytes != null) {
+			return new ByteArrayInputStream(bytes);
+		}
+
+		WebContentProvider.Database database = WebContentProvider.Database.getInstance(context);
 		InputStream inputStream = null;
-		byte[] bytes = null;
-		Uri uri = WebContentProvider.getDefaultAuthority(context).buildUpon().appendPath(responseKey).build();
 
-		Cursor c = context.getContentResolver().query(uri, null, null, null, null);
+		Cursor c = database.getStreamCursor(responseKey);
 		if (c.moveToFirst()) {
-			bytes = c.getBlob(0);
-
-			if (bytes == null) {
+			if (!c.isNull(0)) {
+				Uri uri = WebContentProvider.getDefaultAuthority(context).buildUpon().appendPath(responseKey).build();
 				try {
 					inputStream = context.getContentResolver().openInputStream(uri);
 				} catch (FileNotFoundException e) {
 					e.printStackTrace();
 				}
-			} else {
-				inputStream = new ByteArrayInputStream(bytes);
+			} else if (!c.isNull(1)) {
+				inputStream = Codec.decode(new BlobInputStream(database, c.getString(2), c.getLong(1)), c.getInt(3));
 			}
 		}
 		c.close();
 		return inputStream;
-		*/
-		byte[] bytes = getResponseBytes(context, responseKey);
-		return new ByteArrayInputStream(bytes);
 	}
 
-	public static String getResponseString(Context context, String responseKey) {
+	/**
+	 * Get response for key as a read-only ByteBuffer. Side files are memory
+	 * mapped so large responses are read without copying to the heap, other
+	 * responses are wrapped in a heap buffer. Returns null if there is no
+	 * response for key.
+	 * 
+	 * Cache files are only ever replaced by rename or deleted, never truncated
+	 * or rewritten, so a mapping stays valid and unchanged for as long as the
+	 * buffer is referenced even if the record is pruned or overwritten; the
+	 * file's storage is released once the buffer is garbage collected.
+	 * 
+	 * @param context
+	 * @param responseKey
+	 * @return
+	 */
+	public static ByteBuffer getResponseBuffer(Context context, String responseKey) {
 		context = context.getApplicationContext();
 
+		byte[] bytes = WebContentProvider.MEMORY_CACHE.get(responseKey);
+		if (bytes != null) {
+			return ByteBuffer.wrap(bytes).asReadOnlyBuffer();
+		}
+		long generation = WebContentProvider.MEMORY_CACHE.generation();
+
+		boolean mapped = false;
+		Cursor c = WebContentProvider.Database.getInstance(context).getStreamCursor(responseKey);
 		try {
-			return new String(getResponseBytes(context, responseKey));
-		} catch (NullPointerException e) {
+			if (!c.moveToFirst()) {
+				return null;
+			}
+			mapped = !c.isNull(0);
+		} finally {
+			c.close();
+		}
+
+		if (!mapped) {
+			// memory was already looked in, don't count the miss again
+			bytes = readStoredBytes(context, responseKey, generation);
+			return bytes == null ? null : ByteBuffer.wrap(bytes).asReadOnlyBuffer();
+		}
+
+		Uri uri = WebContentProvider.getDefaultAuthority(context).buildUpon().appendPath(responseKey).build();
+		ParcelFileDescriptor pfd = null;
+		FileInputStream in = null;
+		try {
+			pfd = context.getContentResolver().openFileDescriptor(uri, "r");
+			if (pfd == null) {
+				return null;
+			}
+			// closes pfd along with the channel
+			in = new ParcelFileDescriptor.AutoCloseInputStream(pfd);
+			FileChannel channel = in.getChannel();
+			// mapping remains valid after the channel and descriptor are closed
+			return channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+		} catch (IOException e) {
 			e.printStackTrace();
+			return null;
+		} finally {
+			try {
+				if (in != null) {
+					in.close();
+				} else if (pfd != null) {
+					pfd.close();
+				}
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+		}
+	}
+
+	/**
+	 * Get response for key decoded with the charset it was received in, or the
+	 * default charset if it declared none. Returns an empty string if there is no
+	 * response for key.
+	 * 
+	 * @param context
+	 * @param responseKey
+	 * @return
+	 */
+	public static String getResponseString(Context context, String responseKey) {
+		context = context.getApplicationContext();
+
+		// only decoded, so the copy in memory needn't be cloned
+		byte[] bytes = readResponseBytes(context, responseKey, false);
+		if (bytes == null) {
 			return "";
 		}
+
+		String charSet = WebContentProvider.Database.getInstance(context).getCharSet(responseKey);
+		if (charSet != null) {
+			try {
+				return new String(bytes, charSet);
+			} catch (UnsupportedEncodingException e) {
+				e.printStackTrace();
+			}
+		}
+		return new String(bytes);
 	}
 
 	/* Service Implementation */
@@ -580,12 +1397,23 @@ public class WebService extends Service {
 	public void onCreate() {
 		log(Log.DEBUG, "Created ThreadPool");
 		mPool = Executors.newFixedThreadPool(POOL_SIZE);
+		mPrefetchPool = Executors.newSingleThreadExecutor(new ThreadFactory() {
+			public Thread newThread(final Runnable r) {
+				return new Thread(new Runnable() {
+					public void run() {
+						Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+						r.run();
+					}
+				}, "WebService prefetch");
+			}
+		});
 	}
 
 	@Override
 	public int onStartCommand(Intent intent, int flags, int startId) {
 		log(Log.DEBUG, "Executing Threaded Request");
-		mPool.execute(new WebServiceHandler(intent, startId));
+		boolean prefetch = intent != null && intent.getBooleanExtra("prefetch", false);
+		(prefetch ? mPrefetchPool : mPool).execute(new WebServiceHandler(intent, startId));
 		return START_STICKY;
 	}
 
@@ -607,15 +1435,20 @@ public class WebService extends Service {
 		}
 
 		log(Log.DEBUG, "Shutting down ThreadPool");
-		mPool.shutdown();
+		shutdown(mPool);
+		shutdown(mPrefetchPool);
+	}
+
+	private static void shutdown(ExecutorService pool) {
+		pool.shutdown();
 		try {
-			if (!mPool.awaitTermination(5, TimeUnit.SECONDS)) {
+			if (!pool.awaitTermination(5, TimeUnit.SECONDS)) {
 				log(Log.DEBUG, "ThreadPool did not shutdown, forcing shutdown");
-				mPool.shutdownNow();
+				pool.shutdownNow();
 			}
 		} catch (InterruptedException e) {
 			log(Log.DEBUG, "Error shutting down ThreadPool, forcing shutdown");
-			mPool.shutdownNow();
+			pool.shutdownNow();
 			Thread.currentThread().interrupt();
 		}
 	}
@@ -0,0 +1,9 @@
+package org.tsg.web;
+
+public class ApacheTransportTest extends TransportConformanceTest {
+
+	@Override
+	protected Transport newTransport() {
+		return new ApacheTransport();
+	}
+}
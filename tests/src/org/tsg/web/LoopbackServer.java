@@ -0,0 +1,222 @@
+package org.tsg.web;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Minimal HTTP/1.1 server on the loopback interface for testing transports.
+ * Requests are answered by a Handler, over keep-alive connections, with bodies
+ * of a known Content-Length only.
+ */
+class LoopbackServer {
+
+	interface Handler {
+		void handle(Request request, Response response) throws IOException;
+	}
+
+	static class Request {
+		String mMethod;
+		String mPath;
+		final List<String[]> mHeaders = new ArrayList<String[]>();
+		byte[] mBody = new byte[0];
+
+		String getHeader(String name) {
+			for (String[] header : mHeaders) {
+				if (header[0].equalsIgnoreCase(name)) {
+					return header[1];
+				}
+			}
+			return null;
+		}
+	}
+
+	static class Response {
+		int mCode = 200;
+		String mMessage = "OK";
+		final List<String[]> mHeaders = new ArrayList<String[]>();
+		byte[] mBody = new byte[0];
+
+		void addHeader(String name, String value) {
+			mHeaders.add(new String[] { name, value });
+		}
+
+		void setBody(String body) throws IOException {
+			mBody = body.getBytes("UTF-8");
+		}
+
+		/**
+		 * Set body gzip encoded, with Content-Encoding.
+		 */
+		void setGzipBody(byte[] body) throws IOException {
+			ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+			GZIPOutputStream gzip = new GZIPOutputStream(bytes);
+			gzip.write(body);
+			gzip.close();
+			mBody = bytes.toByteArray();
+			addHeader("Content-Encoding", "gzip");
+		}
+	}
+
+	private final ServerSocket mServerSocket;
+	private final List<Socket> mSockets = new ArrayList<Socket>();
+	private volatile Handler mHandler;
+	private volatile Request mLastRequest;
+	private volatile int mRequestCount;
+
+	LoopbackServer() throws IOException {
+		mServerSocket = new ServerSocket(0, 50, InetAddress.getByName("127.0.0.1"));
+
+		Thread thread = new Thread(new Runnable() {
+			public void run() {
+				accept();
+			}
+		}, "LoopbackServer");
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	void setHandler(Handler handler) {
+		mHandler = handler;
+	}
+
+	String getUrl(String path) {
+		return "http://127.0.0.1:" + mServerSocket.getLocalPort() + path;
+	}
+
+	Request getLastRequest() {
+		return mLastRequest;
+	}
+
+	int getRequestCount() {
+		return mRequestCount;
+	}
+
+	void close() throws IOException {
+		mServerSocket.close();
+		synchronized (mSockets) {
+			for (Socket socket : mSockets) {
+				socket.close();
+			}
+		}
+	}
+
+	private void accept() {
+		while (!mServerSocket.isClosed()) {
+			final Socket socket;
+			try {
+				socket = mServerSocket.accept();
+			} catch (IOException e) {
+				return;
+			}
+			synchronized (mSockets) {
+				mSockets.add(socket);
+			}
+
+			Thread thread = new Thread(new Runnable() {
+				public void run() {
+					try {
+						serve(socket);
+					} catch (IOException e) {
+						// client went away
+					} finally {
+						try {
+							socket.close();
+						} catch (IOException e) {
+						}
+					}
+				}
+			}, "LoopbackServer connection");
+			thread.setDaemon(true);
+			thread.start();
+		}
+	}
+
+	private void serve(Socket socket) throws IOException {
+		InputStream in = new BufferedInputStream(socket.getInputStream());
+		OutputStream out = socket.getOutputStream();
+
+		Request request;
+		while ((request = readRequest(in)) != null) {
+			mLastRequest = request;
+			mRequestCount++;
+
+			Response response = new Response();
+			Handler handler = mHandler;
+			if (handler != null) {
+				handler.handle(request, response);
+			}
+			writeResponse(out, request, response);
+		}
+	}
+
+	private static Request readRequest(InputStream in) throws IOException {
+		String line = readLine(in);
+		if (line == null || line.length() == 0) {
+			return null;
+		}
+
+		String[] parts = line.split(" ");
+		Request request = new Request();
+		request.mMethod = parts[0];
+		request.mPath = parts[1];
+
+		while ((line = readLine(in)) != null && line.length() != 0) {
+			int colon = line.indexOf(':');
+			request.mHeaders.add(new String[] { line.substring(0, colon).trim(), line.substring(colon + 1).trim() });
+		}
+
+		String length = request.getHeader("Content-Length");
+		if (length != null) {
+			request.mBody = new byte[Integer.parseInt(length)];
+			int offset = 0;
+			int len;
+			while (offset < request.mBody.length && (len = in.read(request.mBody, offset, request.mBody.length - offset)) != -1) {
+				offset += len;
+			}
+		}
+		return request;
+	}
+
+	private static String readLine(InputStream in) throws IOException {
+		StringBuilder line = new StringBuilder();
+		int c;
+		while ((c = in.read()) != -1) {
+			if (c == '\n') {
+				int end = line.length();
+				return end > 0 && line.charAt(end - 1) == '\r' ? line.substring(0, end - 1) : line.toString();
+			}
+			line.append((char) c);
+		}
+		return line.length() == 0 ? null : line.toString();
+	}
+
+	private static void writeResponse(OutputStream out, Request request, Response response) throws IOException {
+		// 204 and 304 never have a body, nor does the answer to a HEAD
+		boolean bodyless = response.mCode == 204 || response.mCode == 304 || "HEAD".equals(request.mMethod);
+
+		StringBuilder head = new StringBuilder();
+		head.append("HTTP/1.1 ").append(response.mCode).append(' ').append(response.mMessage).append("\r\n");
+		for (String[] header : response.mHeaders) {
+			head.append(header[0]).append(": ").append(header[1]).append("\r\n");
+		}
+		if (!bodyless) {
+			head.append("Content-Length: ").append(response.mBody.length).append("\r\n");
+		}
+		head.append("\r\n");
+
+		out.write(head.toString().getBytes("ISO-8859-1"));
+		if (!bodyless) {
+			out.write(response.mBody);
+		}
+		out.flush();
+	}
+}
@@ -0,0 +1,374 @@
+package org.tsg.web;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.ServerSocket;
+import java.util.List;
+
+import junit.framework.TestCase;
+import android.os.Bundle;
+
+/**
+ * Behaviour every Transport must share, run against a LoopbackServer. Each
+ * implementation is tested by a subclass providing it with newTransport.
+ */
+public abstract class TransportConformanceTest extends TestCase {
+
+	private LoopbackServer mServer;
+	private Transport mTransport;
+
+	/**
+	 * Transport under test, a new instance per test.
+	 *
+	 * @return
+	 */
+	protected abstract Transport newTransport();
+
+	@Override
+	protected void setUp() throws Exception {
+		super.setUp();
+		mServer = new LoopbackServer();
+		mTransport = newTransport();
+	}
+
+	@Override
+	protected void tearDown() throws Exception {
+		mServer.close();
+		super.tearDown();
+	}
+
+	private WebClient newClient(WebRequest request) {
+		return new WebClient(request) {
+			@Override
+			protected Transport getTransport() {
+				return mTransport;
+			}
+		};
+	}
+
+	private WebClient newClient(String path) {
+		return newClient(new WebRequest(mServer.getUrl(path)));
+	}
+
+	private Transport.Response execute(WebClient client, String... headers) throws Exception {
+		Transport.Request request = client.getTransportRequest();
+		for (int i = 0; i < headers.length; i += 2) {
+			request.addHeader(headers[i], headers[i + 1]);
+		}
+		return mTransport.execute(client, request);
+	}
+
+	private static byte[] readBody(Transport.Response response) throws IOException {
+		InputStream in = response.getBody();
+		if (in == null) {
+			return null;
+		}
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		byte[] buffer = new byte[1024];
+		int len;
+		while ((len = in.read(buffer)) != -1) {
+			out.write(buffer, 0, len);
+		}
+		response.close();
+		return out.toByteArray();
+	}
+
+	private static String readString(Transport.Response response) throws IOException {
+		byte[] body = readBody(response);
+		return body == null ? null : new String(body, "UTF-8");
+	}
+
+	public void testStatusHeadersAndBody() throws Exception {
+		mServer.setHandler(new LoopbackServer.Handler() {
+			public void handle(LoopbackServer.Request request, LoopbackServer.Response response) throws IOException {
+				response.mCode = 201;
+				response.mMessage = "Created";
+				response.addHeader("Content-Type", "text/plain; charset=UTF-8");
+				response.addHeader("X-Custom", "value");
+				response.setBody("hello");
+			}
+		});
+
+		Transport.Response response = execute(newClient("/status"));
+		assertEquals(201, response.getCode());
+		assertEquals("Created", response.getMessage());
+		assertEquals("value", response.getHeader("x-custom"));
+		assertEquals("value", response.getHeader("X-CUSTOM"));
+		assertNull(response.getHeader("X-Missing"));
+		assertEquals(5, response.getContentLength());
+		assertEquals("hello", readString(response));
+		assertEquals("GET", mServer.getLastRequest().mMethod);
+		assertEquals("/status", mServer.getLastRequest().mPath);
+	}
+
+	public void testMultipleHeaderValues() throws Exception {
+		mServer.setHandler(new LoopbackServer.Handler() {
+			public void handle(LoopbackServer.Request request, LoopbackServer.Response response) {
+				response.addHeader("Cache-Control", "no-transform");
+				response.addHeader("Cache-Control", "max-age=60");
+			}
+		});
+
+		Transport.Response response = execute(newClient("/multi"));
+		List<String> values = response.getHeaders("cache-control");
+		assertEquals(2, values.size());
+		assertTrue(values.contains("no-transform"));
+		assertTrue(values.contains("max-age=60"));
+		assertTrue(response.getHeaders("X-Missing").isEmpty());
+		response.close();
+	}
+
+	public void testRequestHeadersSent() throws Exception {
+		Transport.Response response = execute(newClient("/headers"), "X-Request", "abc");
+		response.close();
+
+		assertEquals("abc", mServer.getLastRequest().getHeader("X-Request"));
+		assertEquals("gzip", mServer.getLastRequest().getHeader("Accept-Encoding"));
+	}
+
+	public void testAcceptEncodingNotOverridden() throws Exception {
+		Transport.Response response = execute(newClient("/identity"), "Accept-Encoding", "identity");
+		response.close();
+
+		assertEquals("identity", mServer.getLastRequest().getHeader("Accept-Encoding"));
+	}
+
+	public void testGzipBodyDecoded() throws Exception {
+		final byte[] body = new byte[20000];
+		for (int i = 0; i < body.length; i++) {
+			body[i] = (byte) ('a' + i % 7);
+		}
+		mServer.setHandler(new LoopbackServer.Handler() {
+			public void handle(LoopbackServer.Request request, LoopbackServer.Response response) throws IOException {
+				response.setGzipBody(body);
+			}
+		});
+
+		Transport.Response response = execute(newClient("/gzip"));
+		assertEquals(200, response.getCode());
+		assertEquals(-1, response.getContentLength());
+		assertTrue(java.util.Arrays.equals(body, readBody(response)));
+	}
+
+	public void testPostForm() throws Exception {
+		WebRequest request = new WebRequest(mServer.getUrl("/form"));
+		request.setMethod(WebService.METHOD_POST);
+		Bundle params = new Bundle();
+		params.putString("name", "a b");
+		request.setParams(params);
+
+		execute(newClient(request)).close();
+
+		LoopbackServer.Request received = mServer.getLastRequest();
+		assertEquals("POST", received.mMethod);
+		assertEquals("/form", received.mPath);
+		assertTrue(received.getHeader("Content-Type").startsWith("application/x-www-form-urlencoded"));
+		assertEquals("name=a+b", new String(received.mBody, "ISO-8859-1"));
+	}
+
+	public void testPostBody() throws Exception {
+		WebRequest request = new WebRequest(mServer.getUrl("/body"));
+		request.setMethod(WebService.METHOD_POST);
+		request.setBody("raw body");
+
+		execute(newClient(request)).close();
+
+		LoopbackServer.Request received = mServer.getLastRequest();
+		assertEquals("POST", received.mMethod);
+		assertEquals("raw body", new String(received.mBody, "ISO-8859-1"));
+		assertEquals("8", received.getHeader("Content-Length"));
+	}
+
+	public void testPutFile() throws Exception {
+		File file = File.createTempFile("upload", ".tmp");
+		try {
+			FileOutputStream out = new FileOutputStream(file);
+			out.write("file body".getBytes("UTF-8"));
+			out.close();
+
+			WebRequest request = new WebRequest(mServer.getUrl("/file"));
+			request.setMethod(WebService.METHOD_PUT);
+			request.setBody(file);
+
+			execute(newClient(request)).close();
+
+			LoopbackServer.Request received = mServer.getLastRequest();
+			assertEquals("PUT", received.mMethod);
+			assertEquals("file body", new String(received.mBody, "UTF-8"));
+			assertTrue(received.getHeader("Content-Type").startsWith("application/x-www-form-urlencoded"));
+		} finally {
+			file.delete();
+		}
+	}
+
+	public void testDelete() throws Exception {
+		WebRequest request = new WebRequest(mServer.getUrl("/item"));
+		request.setMethod(WebService.METHOD_DELETE);
+
+		execute(newClient(request)).close();
+
+		assertEquals("DELETE", mServer.getLastRequest().mMethod);
+		assertEquals(0, mServer.getLastRequest().mBody.length);
+	}
+
+	public void testErrorResponseBody() throws Exception {
+		mServer.setHandler(new LoopbackServer.Handler() {
+			public void handle(LoopbackServer.Request request, LoopbackServer.Response response) throws IOException {
+				response.mCode = 404;
+				response.mMessage = "Not Found";
+				response.setBody("missing");
+			}
+		});
+
+		Transport.Response response = execute(newClient("/missing"));
+		assertEquals(404, response.getCode());
+		assertEquals("Not Found", response.getMessage());
+		assertEquals("missing", readString(response));
+	}
+
+	public void testNotModifiedHasNoBody() throws Exception {
+		mServer.setHandler(new LoopbackServer.Handler() {
+			public void handle(LoopbackServer.Request request, LoopbackServer.Response response) {
+				response.mCode = 304;
+				response.mMessage = "Not Modified";
+				response.addHeader("ETag", "\"v1\"");
+			}
+		});
+
+		Transport.Response response = execute(newClient("/cached"), "If-None-Match", "\"v1\"");
+		assertEquals(304, response.getCode());
+		assertEquals("\"v1\"", response.getHeader("ETag"));
+		byte[] body = readBody(response);
+		assertTrue(body == null || body.length == 0);
+	}
+
+	public void testNoContent() throws Exception {
+		mServer.setHandler(new LoopbackServer.Handler() {
+			public void handle(LoopbackServer.Request request, LoopbackServer.Response response) {
+				response.mCode = 204;
+				response.mMessage = "No Content";
+			}
+		});
+
+		Transport.Response response = execute(newClient("/empty"));
+		assertEquals(204, response.getCode());
+		byte[] body = readBody(response);
+		assertTrue(body == null || body.length == 0);
+	}
+
+	public void testRangeRequest() throws Exception {
+		mServer.setHandler(new LoopbackServer.Handler() {
+			public void handle(LoopbackServer.Request request, LoopbackServer.Response response) throws IOException {
+				assertEquals("bytes=5-", request.getHeader("Range"));
+				response.mCode = 206;
+				response.mMessage = "Partial Content";
+				response.addHeader("Content-Range", "bytes 5-9/10");
+				response.setBody("56789");
+			}
+		});
+
+		Transport.Response response = execute(newClient("/range"), "Accept-Encoding", "identity", "Range", "bytes=5-");
+		assertEquals(206, response.getCode());
+		assertEquals("bytes 5-9/10", response.getHeader("Content-Range"));
+		assertEquals(5, response.getContentLength());
+		assertEquals("56789", readString(response));
+	}
+
+	public void testConnectionRefused() throws Exception {
+		// a port nothing listens on
+		ServerSocket socket = new ServerSocket(0);
+		int port = socket.getLocalPort();
+		socket.close();
+
+		try {
+			execute(newClient(new WebRequest("http://127.0.0.1:" + port + "/")));
+			fail("expected connection to be refused");
+		} catch (IOException e) {
+			// expected
+		}
+	}
+
+	public void testConnectionReusableAfterCloseAndAbort() throws Exception {
+		mServer.setHandler(new LoopbackServer.Handler() {
+			public void handle(LoopbackServer.Request request, LoopbackServer.Response response) throws IOException {
+				response.mBody = new byte[100000];
+			}
+		});
+
+		// body left unread
+		Transport.Response response = execute(newClient("/large"));
+		response.close();
+
+		// body partly read
+		response = execute(newClient("/large"));
+		assertTrue(response.getBody().read() != -1);
+		response.abort();
+
+		response = execute(newClient("/large"));
+		assertEquals(100000, readBody(response).length);
+		assertEquals(3, mServer.getRequestCount());
+	}
+
+	public void testCallReadsResponse() throws Exception {
+		mServer.setHandler(new LoopbackServer.Handler() {
+			public void handle(LoopbackServer.Request request, LoopbackServer.Response response) throws IOException {
+				response.addHeader("Content-Type", "text/plain; charset=ISO-8859-1");
+				response.addHeader("Cache-Control", "public, max-age=\"120\"");
+				response.addHeader("Age", "20");
+				response.addHeader("ETag", "\"v2\"");
+				response.addHeader("Last-Modified", "Sun, 06 Nov 1994 08:49:37 GMT");
+				response.setGzipBody(new byte[] { 'c', 'a', 'f', (byte) 0xe9 });
+			}
+		});
+
+		WebClient client = newClient("/call");
+		client.call();
+
+		assertEquals(Integer.valueOf(200), client.mResponseCode);
+		assertEquals("ISO-8859-1", client.mResponseCharSet);
+		assertEquals("\"v2\"", client.mResponseETag);
+		assertEquals("Sun, 06 Nov 1994 08:49:37 GMT", client.mResponseLastModified);
+		assertEquals(Long.valueOf(100 * 1000), client.mResponseLifetime);
+		// kept as received, not re-encoded
+		assertTrue(java.util.Arrays.equals(new byte[] { 'c', 'a', 'f', (byte) 0xe9 }, client.mResponseBytes));
+	}
+
+	public void testCallExpiresHeader() throws Exception {
+		mServer.setHandler(new LoopbackServer.Handler() {
+			public void handle(LoopbackServer.Request request, LoopbackServer.Response response) throws IOException {
+				response.addHeader("Date", "Sun, 06 Nov 1994 08:49:37 GMT");
+				response.addHeader("Expires", "Sunday, 06-Nov-94 08:50:37 GMT");
+				response.setBody("x");
+			}
+		});
+
+		WebClient client = newClient("/expires");
+		client.call();
+
+		assertEquals(Long.valueOf(60 * 1000), client.mResponseLifetime);
+	}
+
+	public void testCallConditional() throws Exception {
+		mServer.setHandler(new LoopbackServer.Handler() {
+			public void handle(LoopbackServer.Request request, LoopbackServer.Response response) throws IOException {
+				if ("\"v3\"".equals(request.getHeader("If-None-Match"))) {
+					response.mCode = 304;
+					response.mMessage = "Not Modified";
+				} else {
+					response.setBody("changed");
+				}
+			}
+		});
+
+		WebClient client = newClient("/conditional");
+		client.mIfNoneMatch = "\"v3\"";
+		client.call();
+
+		assertTrue(client.isNotModified());
+		assertNull(client.mResponseBytes);
+		assertEquals("\"v3\"", mServer.getLastRequest().getHeader("If-None-Match"));
+	}
+}
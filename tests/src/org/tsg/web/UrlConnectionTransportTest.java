@@ -0,0 +1,9 @@
+package org.tsg.web;
+
+public class UrlConnectionTransportTest extends TransportConformanceTest {
+
+	@Override
+	protected Transport newTransport() {
+		return new UrlConnectionTransport();
+	}
+}